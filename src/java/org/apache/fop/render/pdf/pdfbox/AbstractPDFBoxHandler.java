@@ -63,60 +63,99 @@ public abstract class AbstractPDFBoxHandler {
         final int selectedPage = ImageUtil.needPageIndexFromURI(originalImageUri);
 
         PDDocument pddoc = image.getPDDocument();
+        PDFDocument pdfDoc = targetPage.getDocument();
+        if (!checkSourceDocument(this, pddoc, pdfDoc, eventBroadcaster)) {
+            return null;
+        }
+
+        Map<Object, Object> objectCachePerFile = getObjectCache(getImagePath(originalImageUri), userAgent);
+
+        PDPage page = pddoc.getPage(selectedPage);
+
+        setParentResources(targetPage);
+
+        Map<Object, Object> objectCache = getObjectCache(getClass().getName(), userAgent);
+        PDFBoxAdapter adapter =
+                new PDFBoxAdapter(targetPage, objectCachePerFile, pageNumbers, objectCache);
+        configureAdapter(adapter, userAgent);
+        if (handler != null) {
+            adapter.setCurrentMCID(handler.getPageParentTree().length());
+        }
+        Object stream = adapter.createStreamFromPDFBoxPage(pddoc, page, originalImageUri, at, fontinfo, pos);
+        if (userAgent.isAccessibilityEnabled() && curentSessionElem != null) {
+            TaggedPDFConductor conductor = new TaggedPDFConductor(curentSessionElem, handler, page, adapter);
+            conductor.handleLogicalStructure(pddoc);
+        }
+        return stream;
+    }
+
+    /**
+     * Checks whether a source document can be imported into the given target document and
+     * warns about potential problems. The PDF version of the target document is raised if needed.
+     * @param source the event source
+     * @param pddoc the source document
+     * @param pdfDoc the target document
+     * @param eventBroadcaster the event broadcaster
+     * @return false if the source document can't be imported
+     */
+    static boolean checkSourceDocument(Object source, PDDocument pddoc, PDFDocument pdfDoc,
+                                       EventBroadcaster eventBroadcaster) {
         float pdfVersion = pddoc.getDocument().getVersion();
         Version inputDocVersion = Version.getValueOf(String.valueOf(pdfVersion));
-        PDFDocument pdfDoc = targetPage.getDocument();
 
         if (pdfDoc.getPDFVersion().compareTo(inputDocVersion) < 0) {
             try {
                 pdfDoc.setPDFVersion(inputDocVersion);
             } catch (IllegalStateException e) {
-                getEventProducer(eventBroadcaster).pdfVersionMismatch(this,
+                getEventProducer(eventBroadcaster).pdfVersionMismatch(source,
                          pdfDoc.getPDFVersionString(), String.valueOf(pdfVersion));
             }
         }
 
         //Encryption test
         if (pddoc.isEncrypted()) {
-            getEventProducer(eventBroadcaster).encryptedPdf(this);
-            return null;
+            getEventProducer(eventBroadcaster).encryptedPdf(source);
+            return false;
         }
 
-
         //Warn about potential problems with PDF/A and PDF/X
         if (pdfDoc.getProfile().isPDFAActive()) {
-            getEventProducer(eventBroadcaster).pdfAActive(this);
+            getEventProducer(eventBroadcaster).pdfAActive(source);
         }
         if (pdfDoc.getProfile().isPDFXActive()) {
-            getEventProducer(eventBroadcaster).pdfXActive(this);
+            getEventProducer(eventBroadcaster).pdfXActive(source);
         }
+        return true;
+    }
 
-        Map<Object, Object> objectCachePerFile = getObjectCache(getImagePath(originalImageUri), userAgent);
-
-        PDPage page = pddoc.getPage(selectedPage);
+    /**
+     * Applies the renderer options of the user agent to an adapter.
+     * @param adapter the adapter
+     * @param userAgent the user agent, may be null
+     */
+    static void configureAdapter(PDFBoxAdapter adapter, FOUserAgent userAgent) {
+        if (userAgent == null) {
+            return;
+        }
+        Object shared = userAgent.getRendererOptions().get(PDFBoxAdapter.DOCUMENT_FONTS_SHARED);
+        adapter.setDocumentFontsShared(Boolean.TRUE.equals(shared) || "true".equals(shared));
+        Object policy = userAgent.getRendererOptions().get(PDFBoxAdapter.FONT_MERGE_POLICY);
+        if (policy instanceof FontMergePolicy) {
+            adapter.setFontMergePolicy((FontMergePolicy) policy);
+        }
+    }
 
+    static void setParentResources(PDFPage targetPage) {
         if (targetPage.getPDFResources().getParentResources() == null) {
+            PDFDocument pdfDoc = targetPage.getDocument();
             PDFResources res = pdfDoc.getFactory().makeResources();
             res.setParentResources(pdfDoc.getResources());
             res.addContext(targetPage);
             targetPage.put("Resources", res);
         }
-
-        Map<Object, Object> objectCache = getObjectCache(getClass().getName(), userAgent);
-        PDFBoxAdapter adapter =
-                new PDFBoxAdapter(targetPage, objectCachePerFile, pageNumbers, objectCache);
-        if (handler != null) {
-            adapter.setCurrentMCID(handler.getPageParentTree().length());
-        }
-        Object stream = adapter.createStreamFromPDFBoxPage(pddoc, page, originalImageUri, at, fontinfo, pos);
-        if (userAgent.isAccessibilityEnabled() && curentSessionElem != null) {
-            TaggedPDFConductor conductor = new TaggedPDFConductor(curentSessionElem, handler, page, adapter);
-            conductor.handleLogicalStructure(pddoc);
-        }
-        return stream;
     }
 
-    private Map<Object, Object> getObjectCache(String path, FOUserAgent userAgent) {
+    static Map<Object, Object> getObjectCache(String path, FOUserAgent userAgent) {
         SoftMapCache objectCache = userAgent.getPDFObjectCache();
         if (objectCache.get(path) == null) {
             objectCache.put(path, new HashMap<Object, Object>());
@@ -124,7 +163,7 @@ public abstract class AbstractPDFBoxHandler {
         return (Map<Object, Object>) objectCache.get(path);
     }
 
-    private String getImagePath(String originalImageUri) {
+    static String getImagePath(String originalImageUri) {
         int hashIndex = originalImageUri.indexOf('#');
         if (hashIndex > 0) {
             return originalImageUri.substring(0, hashIndex);
@@ -133,7 +172,7 @@ public abstract class AbstractPDFBoxHandler {
         }
     }
 
-    private PDFBoxEventProducer getEventProducer(EventBroadcaster eventBroadcaster) {
+    private static PDFBoxEventProducer getEventProducer(EventBroadcaster eventBroadcaster) {
         return PDFBoxEventProducer.Provider.get(eventBroadcaster);
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+
+import org.apache.fop.fonts.FontInfo;
+
+/**
+ * Merges a font if the bytes saved are expected to outweigh the work of merging it. The source
+ * fonts of a document with the same unique name are copies of the program which merging only
+ * embeds once, so the saving is estimated as the program size times the number of copies in the
+ * source document beyond the first. Copies left as they are in documents imported before are
+ * already written and don't count. The cost is a fixed amount plus a share of the program size,
+ * both in bytes. A font used once, like a large CJK subset, is left as it is.
+ */
+public class AdaptiveFontMergePolicy implements FontMergePolicy {
+
+    /** the default fixed cost of merging a font, in bytes */
+    public static final long DEFAULT_FIXED_COST = 4096;
+
+    /** the default cost of merging a font per byte of its program */
+    public static final double DEFAULT_COST_PER_BYTE = 0.5;
+
+    private static final COSName[] FONT_FILES = {COSName.FONT_FILE, COSName.FONT_FILE2, COSName.FONT_FILE3};
+
+    private final long fixedCost;
+    private final double costPerByte;
+
+    /**
+     * Creates a policy with the default costs.
+     */
+    public AdaptiveFontMergePolicy() {
+        this(DEFAULT_FIXED_COST, DEFAULT_COST_PER_BYTE);
+    }
+
+    /**
+     * Creates a policy.
+     * @param fixedCost the cost of merging any font, in bytes
+     * @param costPerByte the cost of merging a font per byte of its program
+     */
+    public AdaptiveFontMergePolicy(long fixedCost, double costPerByte) {
+        this.fixedCost = fixedCost;
+        this.costPerByte = costPerByte;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isMerged(FontInfo fontInfo, COSDictionary fontData, String uniqueFontName, int copies) {
+        long programSize = getProgramSize(fontData);
+        return programSize * (copies - 1) >= fixedCost + programSize * costPerByte;
+    }
+
+    /**
+     * Returns the stored size of the program of a font, which doesn't need the program to be decoded.
+     * @param fontData the font dictionary
+     * @return the size, or 0 if the font isn't embedded
+     */
+    static long getProgramSize(COSDictionary fontData) {
+        COSBase descendants = fontData.getDictionaryObject(COSName.DESCENDANT_FONTS);
+        if (descendants instanceof COSArray && ((COSArray) descendants).size() > 0
+                && ((COSArray) descendants).getObject(0) instanceof COSDictionary) {
+            fontData = (COSDictionary) ((COSArray) descendants).getObject(0);
+        }
+        COSBase fd = fontData.getDictionaryObject(COSName.FONT_DESC);
+        if (fd instanceof COSDictionary) {
+            for (COSName fontFile : FONT_FILES) {
+                COSBase stream = ((COSDictionary) fd).getDictionaryObject(fontFile);
+                if (stream instanceof COSStream) {
+                    return ((COSStream) stream).getLength();
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.fontbox.cff.CFFCharset;
+import org.apache.fontbox.cff.CFFExpertCharset;
+import org.apache.fontbox.cff.CFFExpertSubsetCharset;
+import org.apache.fontbox.cff.CFFFont;
+import org.apache.fontbox.cff.CFFStandardString;
+
+/**
+ * Reads the charset of a CFF font program into an array holding the SID, or the CID for a CID-keyed
+ * font, of each glyph. The arrays are cached by font, so each program is only read once.
+ */
+final class CFFCharsetReader {
+
+    private static final int ISO_ADOBE_SIZE = 229;
+    private static final int NUM_STANDARD_STRINGS = 391;
+
+    /** the first byte of the two byte Top DICT operators */
+    static final int ESCAPE = 12;
+    /** the charset operator */
+    static final int CHARSET = 15;
+    /** the Encoding operator */
+    static final int ENCODING = 16;
+    /** the CharStrings operator */
+    static final int CHAR_STRINGS = 17;
+    /** the ROS operator, only found in CID-keyed fonts */
+    static final int ROS = ESCAPE << 8 | 30;
+    /** the FDSelect operator */
+    static final int FD_SELECT = ESCAPE << 8 | 37;
+
+    private static final Map<CFFFont, int[]> CHARSETS = Collections.synchronizedMap(
+            new WeakHashMap<CFFFont, int[]>());
+    private static final Map<String, Integer> STANDARD_SIDS = new HashMap<String, Integer>();
+
+    static {
+        for (int sid = 0; sid < NUM_STANDARD_STRINGS; sid++) {
+            STANDARD_SIDS.put(CFFStandardString.getName(sid), sid);
+        }
+    }
+
+    private CFFCharsetReader() {
+    }
+
+    /**
+     * Returns the SIDs, or CIDs, of the glyphs of a font.
+     * @param font the font
+     * @return the SID of each glyph, 0 for .notdef
+     * @throws IOException if the charset can't be read
+     */
+    static int[] getSids(CFFFont font) throws IOException {
+        int[] sids = CHARSETS.get(font);
+        if (sids == null) {
+            try {
+                sids = readSids(font.getData(), font.getName(), font.getNumCharStrings());
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid CFF charset in " + font.getName());
+            }
+            CHARSETS.put(font, sids);
+        }
+        return sids;
+    }
+
+    private static int[] readSids(byte[] data, String name, int numGlyphs) throws IOException {
+        int[] names = readIndex(data, data[2] & 0xFF);
+        int fontIndex = 0;
+        for (int i = 0; i < names.length - 1; i++) {
+            if (new String(data, names[i], names[i + 1] - names[i], "ISO-8859-1").equals(name)) {
+                fontIndex = i;
+                break;
+            }
+        }
+        return readSids(data, fontIndex, numGlyphs);
+    }
+
+    /**
+     * Reads the SIDs, or CIDs, of the glyphs of a font in a CFF program.
+     * @param data the CFF program
+     * @param fontIndex the index of the font in the program
+     * @param numGlyphs the number of glyphs
+     * @return the SID of each glyph, 0 for .notdef
+     * @throws IOException if the charset can't be read
+     */
+    static int[] readSids(byte[] data, int fontIndex, int numGlyphs) throws IOException {
+        int[] topDict = getTopDict(data, fontIndex);
+        int charset = readTopDictOperand(data, topDict, CHARSET, 0);
+        int[] sids = new int[numGlyphs];
+        if (charset == 0) {
+            for (int gid = 0; gid < Math.min(numGlyphs, ISO_ADOBE_SIZE); gid++) {
+                sids[gid] = gid;
+            }
+        } else if (charset == 1 || charset == 2) {
+            CFFCharset predefined = charset == 1
+                    ? CFFExpertCharset.getInstance() : CFFExpertSubsetCharset.getInstance();
+            for (int gid = 1; gid < numGlyphs; gid++) {
+                Integer sid = STANDARD_SIDS.get(predefined.getNameForGID(gid));
+                if (sid != null) {
+                    sids[gid] = sid;
+                }
+            }
+        } else {
+            readCharset(data, charset, sids);
+        }
+        return sids;
+    }
+
+    private static void readCharset(byte[] data, int charset, int[] sids) throws IOException {
+        int numGlyphs = sids.length;
+        int format = data[charset] & 0xFF;
+        int pos = charset + 1;
+        if (format == 0) {
+            for (int gid = 1; gid < numGlyphs; gid++) {
+                sids[gid] = readCard16(data, pos);
+                pos += 2;
+            }
+        } else if (format == 1 || format == 2) {
+            int gid = 1;
+            while (gid < numGlyphs) {
+                int first = readCard16(data, pos);
+                int left = format == 1 ? data[pos + 2] & 0xFF : readCard16(data, pos + 2);
+                pos += format == 1 ? 3 : 4;
+                for (int i = 0; i <= left && gid < numGlyphs; i++) {
+                    sids[gid++] = first + i;
+                }
+            }
+        } else {
+            throw new IOException("Unknown CFF charset format " + format);
+        }
+    }
+
+    /**
+     * Reads an INDEX.
+     * @return the start of each object and the end of the INDEX
+     */
+    static int[] readIndex(byte[] data, int pos) {
+        int count = readCard16(data, pos);
+        if (count == 0) {
+            return new int[] {pos + 2};
+        }
+        int offSize = data[pos + 2] & 0xFF;
+        int dataStart = pos + 2 + (count + 1) * offSize;
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            int offset = 0;
+            for (int j = 0; j < offSize; j++) {
+                offset = (offset << 8) | (data[pos + 3 + i * offSize + j] & 0xFF);
+            }
+            offsets[i] = dataStart + offset;
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the bounds of a Top DICT.
+     * @param data the CFF program
+     * @param fontIndex the index of the font in the program
+     * @return the start and the end of the Top DICT
+     */
+    static int[] getTopDict(byte[] data, int fontIndex) {
+        int[] names = readIndex(data, data[2] & 0xFF);
+        int[] topDicts = readIndex(data, names[names.length - 1]);
+        return new int[] {topDicts[fontIndex], topDicts[fontIndex + 1]};
+    }
+
+    /**
+     * Reads the last operand of an operator of a Top DICT.
+     * @param data the CFF program
+     * @param topDict the bounds of the Top DICT
+     * @param operator the operator, an escaped operator as {@link #ESCAPE} followed by its second byte
+     * @param defaultValue the value returned if the operator is absent
+     * @return the operand
+     */
+    static int readTopDictOperand(byte[] data, int[] topDict, int operator, int defaultValue) {
+        int value = defaultValue;
+        int operand = 0;
+        int pos = topDict[0];
+        while (pos < topDict[1]) {
+            int b0 = data[pos++] & 0xFF;
+            if (b0 == 12) {
+                if ((ESCAPE << 8 | data[pos++] & 0xFF) == operator) {
+                    value = operand;
+                }
+            } else if (b0 <= 21) {
+                if (b0 == operator) {
+                    value = operand;
+                }
+            } else if (b0 == 28) {
+                operand = (short) readCard16(data, pos);
+                pos += 2;
+            } else if (b0 == 29) {
+                operand = readCard16(data, pos) << 16 | readCard16(data, pos + 2);
+                pos += 4;
+            } else if (b0 == 30) {
+                int nibbles;
+                do {
+                    nibbles = data[pos++] & 0xFF;
+                } while ((nibbles & 0x0F) != 0x0F && (nibbles >> 4) != 0x0F);
+            } else if (b0 >= 32 && b0 <= 246) {
+                operand = b0 - 139;
+            } else if (b0 >= 247 && b0 <= 250) {
+                operand = (b0 - 247) * 256 + (data[pos++] & 0xFF) + 108;
+            } else if (b0 >= 251 && b0 <= 254) {
+                operand = -(b0 - 251) * 256 - (data[pos++] & 0xFF) - 108;
+            }
+        }
+        return value;
+    }
+
+    static int readCard16(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+
+import org.apache.fontbox.ttf.TTFTable;
+import org.apache.fontbox.ttf.TrueTypeFont;
+
+/**
+ * Reads the character code ranges covered by the subtables of a TrueType cmap table, so these
+ * can be looked up instead of probing every 16 bit code.
+ */
+final class CmapCodeRanges {
+
+    private static final int[] ALL_CODES = {0, 0xFFFF};
+    private static final int[] NO_CODES = {};
+
+    private CmapCodeRanges() {
+    }
+
+    /**
+     * Returns the code ranges of all cmap subtables of a font, in the order of the encoding records.
+     * @param ttf the font
+     * @return pairs of first and last code for each subtable, all 16 bit codes if the subtable
+     * format isn't known, or null if there is no cmap table
+     * @throws IOException if the cmap table can't be read
+     */
+    static int[][] getCodeRanges(TrueTypeFont ttf) throws IOException {
+        TTFTable table = ttf.getTableMap().get("cmap");
+        if (table == null) {
+            return null;
+        }
+        byte[] cmap = ttf.getTableBytes(table);
+        int numTables = readUShort(cmap, 2);
+        int[][] ranges = new int[numTables][];
+        for (int i = 0; i < numTables; i++) {
+            try {
+                ranges[i] = readSubtable(cmap, (int) readULong(cmap, 4 + i * 8 + 4));
+            } catch (ArrayIndexOutOfBoundsException e) {
+                ranges[i] = ALL_CODES;
+            }
+        }
+        return ranges;
+    }
+
+    private static int[] readSubtable(byte[] cmap, int offset) {
+        int format = readUShort(cmap, offset);
+        switch (format) {
+            case 0:
+                return new int[] {0, 255};
+            case 4:
+                int segCount = readUShort(cmap, offset + 6) / 2;
+                int[] segments = new int[segCount * 2];
+                for (int i = 0; i < segCount; i++) {
+                    segments[i * 2] = readUShort(cmap, offset + 16 + segCount * 2 + i * 2);
+                    segments[i * 2 + 1] = readUShort(cmap, offset + 14 + i * 2);
+                }
+                return segments;
+            case 6:
+                int firstCode = readUShort(cmap, offset + 6);
+                int entryCount = readUShort(cmap, offset + 8);
+                if (entryCount == 0) {
+                    return NO_CODES;
+                }
+                return new int[] {firstCode, Math.min(firstCode + entryCount - 1, 0xFFFF)};
+            case 12:
+            case 13:
+                long numGroups = readULong(cmap, offset + 12);
+                if (numGroups > (cmap.length - offset - 16) / 12) {
+                    return ALL_CODES;
+                }
+                int[] groups = new int[(int) numGroups * 2];
+                int count = 0;
+                for (int i = 0; i < numGroups; i++) {
+                    long start = readULong(cmap, offset + 16 + i * 12);
+                    long end = readULong(cmap, offset + 16 + i * 12 + 4);
+                    //only 16 bit codes are merged
+                    if (start <= 0xFFFF) {
+                        groups[count++] = (int) start;
+                        groups[count++] = (int) Math.min(end, 0xFFFF);
+                    }
+                }
+                int[] result = new int[count];
+                System.arraycopy(groups, 0, result, 0, count);
+                return result;
+            case 14:
+                return NO_CODES;
+            default:
+                return ALL_CODES;
+        }
+    }
+
+    /**
+     * Looks up a character code in all subtables of a cmap table, in the order of the encoding records.
+     * @param cmap the cmap table
+     * @param code the character code
+     * @return the glyph of the code in each subtable, 0 if it isn't mapped
+     * @throws IOException if a subtable has a format which isn't supported
+     */
+    static int[] getGlyphIds(byte[] cmap, int code) throws IOException {
+        int numTables = readUShort(cmap, 2);
+        int[] glyphs = new int[numTables];
+        for (int i = 0; i < numTables; i++) {
+            glyphs[i] = readGlyphId(cmap, (int) readULong(cmap, 4 + i * 8 + 4), code);
+        }
+        return glyphs;
+    }
+
+    private static int readGlyphId(byte[] cmap, int offset, int code) throws IOException {
+        int format = readUShort(cmap, offset);
+        switch (format) {
+            case 0:
+                return code < 256 ? cmap[offset + 6 + code] & 0xFF : 0;
+            case 4:
+                return readFormat4GlyphId(cmap, offset, code);
+            case 6:
+                int firstCode = readUShort(cmap, offset + 6);
+                int entryCount = readUShort(cmap, offset + 8);
+                if (code < firstCode || code >= firstCode + entryCount) {
+                    return 0;
+                }
+                return readUShort(cmap, offset + 10 + (code - firstCode) * 2);
+            case 12:
+            case 13:
+                long numGroups = readULong(cmap, offset + 12);
+                for (int i = 0; i < numGroups; i++) {
+                    long start = readULong(cmap, offset + 16 + i * 12);
+                    long end = readULong(cmap, offset + 16 + i * 12 + 4);
+                    if (code >= start && code <= end) {
+                        long glyph = readULong(cmap, offset + 16 + i * 12 + 8);
+                        return (int) (format == 12 ? glyph + code - start : glyph);
+                    }
+                }
+                return 0;
+            case 14:
+                return 0;
+            default:
+                throw new IOException("Unsupported cmap format " + format);
+        }
+    }
+
+    private static int readFormat4GlyphId(byte[] cmap, int offset, int code) {
+        int segCount = readUShort(cmap, offset + 6) / 2;
+        for (int i = 0; i < segCount; i++) {
+            int end = readUShort(cmap, offset + 14 + i * 2);
+            int start = readUShort(cmap, offset + 16 + segCount * 2 + i * 2);
+            if (code >= start && code <= end && start != 0xFFFF && end != 0xFFFF) {
+                int delta = readUShort(cmap, offset + 16 + segCount * 4 + i * 2);
+                int rangeOffsetPos = offset + 16 + segCount * 6 + i * 2;
+                int rangeOffset = readUShort(cmap, rangeOffsetPos);
+                if (rangeOffset == 0) {
+                    return (code + delta) & 0xFFFF;
+                }
+                int glyph = readUShort(cmap, rangeOffsetPos + rangeOffset + (code - start) * 2);
+                return glyph == 0 ? 0 : (glyph + delta) & 0xFFFF;
+            }
+        }
+        return 0;
+    }
+
+    private static int readUShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static long readULong(byte[] data, int pos) {
+        return ((long) readUShort(data, pos) << 16) | readUShort(data, pos + 2);
+    }
+}
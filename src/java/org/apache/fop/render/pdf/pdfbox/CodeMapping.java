@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Decodes the strings shown with the source fonts of a merged font and remembers the codes each
+ * source code was re-encoded to, so repeated glyphs are mapped without a lookup by Unicode value.
+ * The buffers are reused between strings.
+ */
+final class CodeMapping {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final Map<FontContainer, IntIntMap> mappedCodes = new WeakHashMap<FontContainer, IntIntMap>();
+    private IntIntMap current;
+    private int[] codes = new int[16];
+    private String[] unicodes = new String[16];
+
+    /**
+     * Decodes a string shown with a source font.
+     * @param bytes the string
+     * @param oldFont the source font
+     * @return the number of codes, or -1 if a code has no Unicode value
+     * @throws IOException if the string can't be read
+     */
+    int read(byte[] bytes, FontContainer oldFont) throws IOException {
+        current = mappedCodes.get(oldFont);
+        if (current == null) {
+            current = new IntIntMap();
+            mappedCodes.put(oldFont, current);
+        }
+        if (codes.length < bytes.length) {
+            codes = new int[bytes.length];
+            unicodes = new String[bytes.length];
+        }
+        int count = oldFont.readCodes(bytes, codes);
+        for (int i = 0; i < count; i++) {
+            if (current.containsKey(codes[i])) {
+                unicodes[i] = null;
+            } else {
+                unicodes[i] = oldFont.font.toUnicode(codes[i]);
+                if (unicodes[i] == null) {
+                    return -1;
+                }
+            }
+        }
+        return count;
+    }
+
+    int getCode(int i) {
+        return codes[i];
+    }
+
+    /**
+     * Returns the Unicode value of a code of the last string read.
+     * @param i the position of the code
+     * @return the Unicode value, or null if the code is already mapped
+     */
+    String getUnicode(int i) {
+        return unicodes[i];
+    }
+
+    boolean isMapped(int i) {
+        return current.containsKey(codes[i]);
+    }
+
+    int getMappedCode(int i) {
+        return current.get(codes[i]);
+    }
+
+    void setMappedCode(int i, int mappedCode) {
+        current.put(codes[i], mappedCode);
+    }
+
+    /**
+     * Appends a string shown with a source font, re-encoded as a hex string of 2 byte codes of a
+     * multi byte target font.
+     * @param bytes the string
+     * @param oldFont the source font
+     * @param mapper maps the Unicode values of codes not mapped yet to target codes
+     * @param out the content being written
+     * @return the number of codes, or -1, leaving out untouched, if a code can't be mapped
+     * @throws IOException if the string can't be read
+     */
+    int writeHexString(byte[] bytes, FontContainer oldFont, UnicodeMapper mapper, StringBuilder out)
+        throws IOException {
+        int count = read(bytes, oldFont);
+        if (count < 0) {
+            return -1;
+        }
+        int start = out.length();
+        out.append('<');
+        for (int i = 0; i < count; i++) {
+            if (!isMapped(i)) {
+                int mapped = mapper.mapUnicode(unicodes[i]);
+                if (mapped < 0) {
+                    out.setLength(start);
+                    return -1;
+                }
+                setMappedCode(i, mapped);
+            }
+            int mapped = getMappedCode(i);
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                out.append(HEX_DIGITS[(mapped >> shift) & 0xF]);
+            }
+        }
+        out.append('>');
+        return count;
+    }
+
+    /**
+     * Forgets all mapped codes, as these change when a font is added.
+     */
+    void clear() {
+        mappedCodes.clear();
+        current = null;
+    }
+
+    /**
+     * Maps the Unicode value of a source code to a code of the target font.
+     */
+    interface UnicodeMapper {
+
+        /**
+         * @param unicode the Unicode value of the source code
+         * @return the target code, or -1 if the target font has no glyph for the value
+         */
+        int mapUnicode(String unicode);
+    }
+}
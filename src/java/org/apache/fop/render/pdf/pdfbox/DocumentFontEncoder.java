@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.fontbox.cmap.CMap;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.pdmodel.font.PDCIDFont;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+
+import org.apache.fop.fonts.CIDFontType;
+import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.fonts.LazyFont;
+import org.apache.fop.fonts.MultiByteFont;
+import org.apache.fop.fonts.Typeface;
+
+/**
+ * Re-encodes the strings of a source font for a font embedded by FOP itself, so imported text
+ * shares the subset FOP writes for its own text instead of adding a merged copy of the typeface.
+ */
+final class DocumentFontEncoder implements CodeMapping.UnicodeMapper {
+
+    //the difference in widths, in 1/1000 em, put down to rounding
+    private static final float WIDTH_TOLERANCE = 1;
+
+    private final Typeface font;
+    private final CodeMapping codeMapping = new CodeMapping();
+
+    DocumentFontEncoder(Typeface font) {
+        this.font = font;
+    }
+
+    /**
+     * Returns the font already used by the document with the PostScript name of a source CID
+     * TrueType font. Only the font dictionaries are read, the candidate still needs to be checked
+     * with {@link #hasSameWidths(FontInfo, String, PDFont)}.
+     * @param fontInfo the fonts of the document
+     * @param fontData the source font dictionary
+     * @return the internal name of the font, or null if there is none
+     */
+    static String getDocumentFont(FontInfo fontInfo, COSDictionary fontData) {
+        if (!COSName.TYPE0.equals(fontData.getCOSName(COSName.SUBTYPE))
+                || fontData.getNameAsString(COSName.BASE_FONT) == null) {
+            return null;
+        }
+        COSBase descendants = fontData.getDictionaryObject(COSName.DESCENDANT_FONTS);
+        if (!(descendants instanceof COSArray) || ((COSArray) descendants).size() == 0
+                || !(((COSArray) descendants).getObject(0) instanceof COSDictionary)
+                || !COSName.CID_FONT_TYPE2.equals(((COSDictionary) ((COSArray) descendants).getObject(0))
+                .getCOSName(COSName.SUBTYPE))) {
+            return null;
+        }
+        String name = MergeFontsPDFWriter.getName(fontData.getNameAsString(COSName.BASE_FONT));
+        for (Map.Entry<String, Typeface> e : fontInfo.getUsedFonts().entrySet()) {
+            MultiByteFont t = getEmbeddedFont(e.getValue());
+            if (t != null && name.equals(t.getEmbedFontName())) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the glyphs of a source font have the widths of the glyphs the document font
+     * maps their Unicode values to, as a font only sharing the PostScript name may be another
+     * version of the typeface. Only the glyphs listed in the widths of the source font are compared
+     * and at least one needs to be in the document font.
+     * @param fontInfo the fonts of the document
+     * @param name the internal name of the document font
+     * @param sourceFont the source font
+     * @return true if the document font can show the text of the source font
+     * @throws IOException if a Unicode value can't be read
+     */
+    static boolean hasSameWidths(FontInfo fontInfo, String name, PDFont sourceFont) throws IOException {
+        MultiByteFont docFont = getEmbeddedFont(fontInfo.getUsedFonts().get(name));
+        if (docFont == null || !(sourceFont instanceof PDType0Font)) {
+            return false;
+        }
+        //the widths are by CID, which are the codes for the identity encoding only, and the
+        //fonts embedded by FOP are horizontal, so vertical text would lose its layout
+        CMap cmap = ((PDType0Font) sourceFont).getCMap();
+        if (cmap == null || !"Identity-H".equals(cmap.getName())) {
+            return false;
+        }
+        PDCIDFont cidFont = ((PDType0Font) sourceFont).getDescendantFont();
+        COSBase w = cidFont.getCOSObject().getDictionaryObject(COSName.W);
+        if (!(w instanceof COSArray)) {
+            return false;
+        }
+        COSArray widths = (COSArray) w;
+        int[] docWidths = docFont.getWidths();
+        int compared = 0;
+        int i = 0;
+        while (i + 1 < widths.size()) {
+            COSBase first = widths.getObject(i);
+            COSBase next = widths.getObject(i + 1);
+            if (!(first instanceof COSNumber)) {
+                return false;
+            }
+            int cid = ((COSNumber) first).intValue();
+            if (next instanceof COSArray) {
+                COSArray range = (COSArray) next;
+                for (int j = 0; j < range.size(); j++) {
+                    if (!(range.getObject(j) instanceof COSNumber)) {
+                        continue;
+                    }
+                    float width = ((COSNumber) range.getObject(j)).floatValue();
+                    int result = compareWidth(sourceFont, cid + j, width, docFont, docWidths);
+                    if (result < 0) {
+                        return false;
+                    }
+                    compared += result;
+                }
+                i += 2;
+            } else if (next instanceof COSNumber && i + 2 < widths.size()) {
+                int last = ((COSNumber) next).intValue();
+                if (!(widths.getObject(i + 2) instanceof COSNumber)) {
+                    return false;
+                }
+                float width = ((COSNumber) widths.getObject(i + 2)).floatValue();
+                for (int c = cid; c <= last; c++) {
+                    int result = compareWidth(sourceFont, c, width, docFont, docWidths);
+                    if (result < 0) {
+                        return false;
+                    }
+                    compared += result;
+                }
+                i += 3;
+            } else {
+                return false;
+            }
+        }
+        return compared > 0;
+    }
+
+    /**
+     * Compares the width of a source glyph with the glyph of the document font for its Unicode value.
+     * @return 1 if the widths are the same, 0 if there is nothing to compare, -1 if they differ
+     */
+    private static int compareWidth(PDFont sourceFont, int cid, float width, MultiByteFont docFont,
+                                    int[] docWidths) throws IOException {
+        String unicode = sourceFont.toUnicode(cid);
+        if (unicode == null || unicode.length() != 1 || !docFont.hasChar(unicode.charAt(0))) {
+            return 0;
+        }
+        int glyph = docFont.findGlyphIndex(unicode.charAt(0));
+        if (glyph < 0 || glyph >= docWidths.length) {
+            return -1;
+        }
+        return Math.abs(width - docWidths[glyph]) <= WIDTH_TOLERANCE ? 1 : -1;
+    }
+
+    private static MultiByteFont getEmbeddedFont(Typeface t) {
+        if (t instanceof LazyFont) {
+            t = ((LazyFont) t).getRealFont();
+        }
+        if (t instanceof MultiByteFont && !(t instanceof FOPPDFFont)
+                && ((MultiByteFont) t).getCIDType() == CIDFontType.CIDTYPE2
+                && ((MultiByteFont) t).isEmbeddable()) {
+            return (MultiByteFont) t;
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether every code of the strings shown with a source font is re-encoded to a glyph of
+     * the document font with the same width. Otherwise the source font isn't replaced, as a code
+     * left as it is would show another glyph of the document font.
+     * @param sourceFont the source font
+     * @param strings the strings shown with the source font, may be null
+     * @return true if at least one code is shown and all can be re-encoded
+     * @throws IOException if a string can't be read
+     */
+    boolean canEncode(FontContainer sourceFont, List<byte[]> strings) throws IOException {
+        MultiByteFont docFont = getEmbeddedFont(font);
+        if (docFont == null || strings == null || strings.isEmpty()) {
+            return false;
+        }
+        int[] docWidths = docFont.getWidths();
+        BitSet checked = new BitSet();
+        int[] codes = new int[16];
+        for (byte[] bytes : strings) {
+            if (codes.length < bytes.length) {
+                codes = new int[bytes.length];
+            }
+            int count = sourceFont.readCodes(bytes, codes);
+            for (int i = 0; i < count; i++) {
+                int code = codes[i];
+                if (!checked.get(code)) {
+                    float width = sourceFont.font.getWidth(code);
+                    if (compareWidth(sourceFont.font, code, width, docFont, docWidths) != 1) {
+                        return false;
+                    }
+                    checked.set(code);
+                }
+            }
+        }
+        return true;
+    }
+
+    String getFontName() {
+        return font.getFontName();
+    }
+
+    /**
+     * Appends a string shown with a source font, re-encoded for the document font.
+     * @param bytes the string
+     * @param oldFont the source font
+     * @param out the content being written
+     * @return false, leaving out untouched, if a character isn't in the document font, which
+     * {@link #canEncode(FontContainer, List)} rules out
+     * @throws IOException if the string can't be read
+     */
+    boolean writeMappedWord(byte[] bytes, FontContainer oldFont, StringBuilder out) throws IOException {
+        return codeMapping.writeHexString(bytes, oldFont, this, out) >= 0;
+    }
+
+    /** {@inheritDoc} */
+    public int mapUnicode(String unicode) {
+        if (unicode.length() != 1 || !font.hasChar(unicode.charAt(0))) {
+            return -1;
+        }
+        return font.mapChar(unicode.charAt(0));
+    }
+}
@@ -17,7 +17,6 @@
 package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
-import java.util.List;
 
 import org.apache.pdfbox.cos.COSDictionary;
 
@@ -28,6 +27,20 @@ interface FOPPDFFont extends RefPDFFont {
     String getFontName();
     void setRef(PDFDictionary d);
     String addFont(COSDictionary fontdata) throws IOException;
+    void setFontContainerCache(FontContainerCache fontCache);
+    /**
+     * Builds the merged font program ahead of it being embedded.
+     * @throws IOException on error
+     */
+    void buildMergedFont() throws IOException;
     int size();
-    String getMappedWord(List<String> word, byte[] bytes, FontContainer oldFont);
+    /**
+     * Appends a string shown with a source font, re-encoded for this font.
+     * @param bytes the string
+     * @param oldFont the source font
+     * @param out the content being written
+     * @return false, leaving out untouched, if the string can't be re-encoded
+     * @throws IOException if the string can't be read
+     */
+    boolean writeMappedWord(byte[] bytes, FontContainer oldFont, StringBuilder out) throws IOException;
 }
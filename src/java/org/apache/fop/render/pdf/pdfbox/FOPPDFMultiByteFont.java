@@ -19,15 +19,17 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.fontbox.cff.CFFCharset;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.apache.fontbox.cff.CFFFont;
 import org.apache.fontbox.cff.CFFStandardString;
 import org.apache.fontbox.cmap.CMap;
@@ -41,17 +43,16 @@ import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSObject;
-import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.font.PDCIDFont;
 import org.apache.pdfbox.pdmodel.font.PDCIDFontType0;
 import org.apache.pdfbox.pdmodel.font.PDCIDFontType2;
 import org.apache.pdfbox.pdmodel.font.PDFont;
-import org.apache.pdfbox.pdmodel.font.PDFontDescriptor;
 import org.apache.pdfbox.pdmodel.font.PDTrueTypeFont;
 import org.apache.pdfbox.pdmodel.font.PDType0Font;
 import org.apache.pdfbox.pdmodel.font.encoding.GlyphList;
 
 import org.apache.fop.fonts.CIDFontType;
+import org.apache.fop.fonts.CMapSegment;
 import org.apache.fop.fonts.CustomFont;
 import org.apache.fop.fonts.EmbeddingMode;
 import org.apache.fop.fonts.FontType;
@@ -60,15 +61,52 @@ import org.apache.fop.pdf.PDFDictionary;
 import org.apache.fop.util.CharUtilities;
 
 public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
+    protected static final Log log = LogFactory.getLog(FOPPDFMultiByteFont.class);
+    //the chars from 0xE000 to 0xF8FF
+    private static final int PRIVATE_USE_KEYS = 0x1900;
+    //the chars below are never keys, as FOP caches their glyphs and a key may have to be moved
+    private static final int FIRST_KEY = 0x100;
+    //all chars but the 0x800 surrogates and the ones below FIRST_KEY
+    private static final int KEY_CANDIDATES = 0x10000 - 0x800 - FIRST_KEY;
     protected PDFDictionary ref;
-    private Map<Integer, Integer> newWidth = new TreeMap<Integer, Integer>();
-    private Map<String, Integer> charMapGlobal = new LinkedHashMap<String, Integer>();
+    private IntIntMap newWidth = new IntIntMap();
+    //the number of glyphs mapped and the single chars and glyph ids in use
+    private int mappedCount;
+    private final BitSet mappedChars = new BitSet();
+    private final BitSet mappedGlyphs = new BitSet();
+    //the chars standing for glyphs mapped to several chars
+    private final Map<String, Character> multiCharKeys = new HashMap<String, Character>();
+    //the keys not being the chars of their glyphs, with the chars they stand for or null if none
+    private final Map<Character, String> syntheticKeys = new HashMap<Character, String>();
+    private final BitSet usedKeys = new BitSet();
+    private int keyCursor;
+    //the glyphs written by the merged content, unknown once a string had to be copied as is
+    private final BitSet usedGlyphs = new BitSet();
+    private boolean usedGlyphsUnknown;
+    //the merged program without the unused glyphs, kept until more glyphs are used
+    private byte[] filteredProgram;
+    private byte[] filteredSource;
+    private BitSet filteredGlyphs;
     private MergeFonts mergeFonts;
     //private Map<String, GlyphData> glyphs = new HashMap<String, GlyphData>();
-    private final Map<COSDictionary, FontContainer> fontMap = new HashMap<COSDictionary, FontContainer>();
+    private FontContainerCache fontCache;
+    private final CodeMapping codeMapping = new CodeMapping();
+    private final CodeMapping.UnicodeMapper unicodeMapper = new CodeMapping.UnicodeMapper() {
+        public int mapUnicode(String unicode) {
+            return FOPPDFMultiByteFont.this.mapUnicode(unicode);
+        }
+    };
+    private final MergedFontKey mergedFontKey = MergedFontRegistry.getInstance().isEnabled()
+            ? new MergedFontKey(getClass().getName()) : null;
 
     public FOPPDFMultiByteFont(COSDictionary fontData, String name) throws IOException {
+        this(fontData, name, new FontContainerCache());
+    }
+
+    public FOPPDFMultiByteFont(COSDictionary fontData, String name, FontContainerCache fontCache)
+        throws IOException {
         super(null, EmbeddingMode.SUBSET);
+        this.fontCache = fontCache;
         //this stops fop modifying font later on
         setEmbeddingMode(EmbeddingMode.FULL);
         readFontBBox(fontData);
@@ -78,6 +116,7 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
     }
 
     public String addFont(COSDictionary fontData) throws IOException {
+        codeMapping.clear();
         FontContainer font = getFont(fontData);
         setProperties(this, font.font);
         PDCIDFont mainFont = null;
@@ -102,7 +141,7 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
             glyphData = ttf.getGlyph().getGlyphs();
         }
         Map<Integer, Integer> oldToNewGIMap = new HashMap<Integer, Integer>();
-        if (charMapGlobal.isEmpty()) {
+        if (mappedCount == 0) {
             oldToNewGIMap.put(0, 0); // .notdef glyph
         }
         CMap c = font.getToUnicodeCMap();
@@ -120,7 +159,7 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
             }
         }
         readCharMap(font, gidToGlyph, glyphData, mainFont, oldToNewGIMap);
-        InputStream ffr = readFontFile(font.font);
+        ByteBuffer fontFile = font.getFontProgram();
         if (mergeFonts == null) {
             if (ttf != null) {
                 mergeFonts = new MergeTTFonts(null);
@@ -131,12 +170,18 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
         if (mergeFonts instanceof MergeTTFonts) {
             mergeMaxp(ttf, ((MergeTTFonts)mergeFonts).maxp);
             int sizeNoCompGlyphs = oldToNewGIMap.size();
-            mergeFonts.readFont(ffr, null, null, oldToNewGIMap, true);
+            mergeFonts.readFont(fontFile.duplicate(), null, null, oldToNewGIMap, true);
+            if (mergedFontKey != null) {
+                mergedFontKey.update(fontFile, null, null, oldToNewGIMap);
+            }
             if (oldToNewGIMap.size() > sizeNoCompGlyphs) {
                 cidSet.mapChar(256 * 256, (char) 0);
             }
         } else {
-            mergeFonts.readFont(ffr, getEmbedFontName(), null, null, true);
+            mergeFonts.readFont(fontFile.duplicate(), getEmbedFontName(), font, null, true);
+            if (mergedFontKey != null) {
+                mergedFontKey.update(fontFile, getEmbedFontName(), null, null);
+            }
         }
         return getFontName();
     }
@@ -148,25 +193,49 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
             String mappedChar = i.getValue();
             int key = i.getKey();
             boolean skipWidth = (mappedChar == null) || mappedChar.length() == 0;
-            if (skipWidth) {
-                mappedChar = (char)charMapGlobal.size() + "tmp";
-            } else if (mappedChar.length() > 1) {
-                mappedChar = "" + (char)mappedChar.hashCode();
+            char c;
+            boolean mapped;
+            if (skipWidth || mappedChar.length() > 1) {
+                Character multiCharKey = skipWidth ? null : multiCharKeys.get(mappedChar);
+                mapped = multiCharKey != null;
+                if (!mapped) {
+                    int unusedKey = getUnusedKey();
+                    if (unusedKey < 0) {
+                        log.warn("Glyph " + key + " of " + font.font.getName()
+                                + " left out, there are no chars left to map it to");
+                        continue;
+                    }
+                    multiCharKey = (char) unusedKey;
+                }
+                c = multiCharKey;
+            } else {
+                c = mappedChar.charAt(0);
+                mapped = mappedChars.get(c);
+                if (!mapped && syntheticKeys.containsKey(c) && !moveKey(c)) {
+                    log.warn("Glyph " + key + " of " + font.font.getName()
+                            + " left out, there are no chars left to map it to");
+                    continue;
+                }
             }
-            if (!charMapGlobal.containsKey(mappedChar)) {
-                char c = mappedChar.charAt(0);
+            if (!mapped) {
                 if (glyphData.length > 0
                         && glyphData[key] == null
                         && !CharUtilities.isAdjustableSpace(c)) {
                     continue;
                 }
-                boolean addToEnd = charMapGlobal.containsValue(key);
-                if (addToEnd) {
-                    addPrivateUseMapping(c, charMapGlobal.size() + 1);
-                    charMapGlobal.put(mappedChar, charMapGlobal.size() + 1);
-                } else {
-                    addPrivateUseMapping(c, key);
-                    charMapGlobal.put(mappedChar, key);
+                boolean addToEnd = mappedGlyphs.get(key);
+                int glyphKey = addToEnd ? mappedCount + 1 : key;
+                addPrivateUseMapping(c, glyphKey);
+                mappedCount++;
+                mappedGlyphs.set(glyphKey);
+                usedKeys.set(c);
+                if (skipWidth || mappedChar.length() > 1) {
+                    syntheticKeys.put(c, skipWidth ? null : mappedChar);
+                }
+                if (!skipWidth && mappedChar.length() > 1) {
+                    multiCharKeys.put(mappedChar, c);
+                } else if (!skipWidth) {
+                    mappedChars.set(c);
                 }
                 int glyph = 0;
                 if (hasChar(c)) {
@@ -193,6 +262,59 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
         }
     }
 
+    /**
+     * Returns a char not used as key yet, to stand for a glyph which isn't mapped to a single char,
+     * or -1 if all chars are in use. The private use area is tried first, from its end as mappings
+     * to it tend to start at its beginning, and then any other char from U+0100. Surrogates are never
+     * used as these would end up unpaired in the ToUnicode CMap. A key may still turn out to be the
+     * char of a glyph added later, see {@link #moveKey(char)}.
+     */
+    private int getUnusedKey() {
+        for (; keyCursor < KEY_CANDIDATES; keyCursor++) {
+            char c = getKeyCandidate(keyCursor);
+            if (!usedKeys.get(c)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private static char getKeyCandidate(int index) {
+        if (index < PRIVATE_USE_KEYS) {
+            return (char) (0xF8FF - index);
+        }
+        index += FIRST_KEY - PRIVATE_USE_KEYS;
+        return (char) (index < 0xD800 ? index : index + 0x800 + PRIVATE_USE_KEYS);
+    }
+
+    /**
+     * Moves the glyph a key was handed out for to another key, so the key is free for a glyph of
+     * the char itself. Only the ToUnicode CMap refers to keys, the glyph ids written stay the same.
+     * @param key the key
+     * @return false if there are no keys left
+     */
+    private boolean moveKey(char key) {
+        int newKey = getUnusedKey();
+        if (newKey < 0) {
+            return false;
+        }
+        CMapSegment[] segments = getCMap();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].getUnicodeStart() == key && segments[i].getUnicodeEnd() == key) {
+                segments[i] = new CMapSegment(newKey, newKey, segments[i].getGlyphStartIndex());
+                break;
+            }
+        }
+        setCMap(segments);
+        usedKeys.set(newKey);
+        String mappedChar = syntheticKeys.remove(key);
+        syntheticKeys.put((char) newKey, mappedChar);
+        if (mappedChar != null) {
+            multiCharKeys.put(mappedChar, (char) newKey);
+        }
+        return true;
+    }
+
     private Map<Integer, String> getMapping(FontContainer font, CMap c, int len) throws IOException {
         Map<Integer, String> mapping = new HashMap<Integer, String>();
         if (font.font instanceof PDType0Font) {
@@ -217,10 +339,8 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
     }
 
     private Map<Integer, String> getStrings(CFFFont ff) throws IOException {
-        CFFCharset cs = ff.getCharset();
         Map<Integer, String> strings = new LinkedHashMap<Integer, String>();
-        for (int gid = 0; gid < 256; gid++) {
-            int sid = cs.getCIDForGID(gid);
+        for (int sid : CFFCharsetReader.getSids(ff)) {
             if (sid != 0) {
                 strings.put(sid, GlyphList.getAdobeGlyphList().toUnicode(readString(sid)));
             }
@@ -262,28 +382,9 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
             return false;
         }
 
-    private InputStream readFontFile(PDFont font) throws IOException {
-        PDFontDescriptor fd = font.getFontDescriptor();
-        if (font instanceof PDType0Font) {
-            PDCIDFont cidFont = ((PDType0Font) font).getDescendantFont();
-            fd = cidFont.getFontDescriptor();
-        }
-        PDStream ff = fd.getFontFile3();
-        if (ff == null) {
-            ff = fd.getFontFile2();
-            if (ff == null) {
-                ff = fd.getFontFile();
-            }
-        }
-        if (ff == null) {
-            throw new IOException(font.getName() + " no fontfile");
-        }
-        InputStream is = ff.createInputStream();
-        return new ByteArrayInputStream(IOUtils.toByteArray(is));
-    }
 
     public Map<Integer, Integer> getWidthsMap() {
-        return newWidth;
+        return newWidth.toMap();
     }
 
     public PDFDictionary getRef() {
@@ -335,17 +436,36 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
     }
 
     public InputStream getInputStream() throws IOException {
-        return new ByteArrayInputStream(mergeFonts.getMergedFontSubset());
+        return new ByteArrayInputStream(getFontProgram());
     }
 
-    protected FontContainer getFont(COSDictionary fontData) throws IOException {
-        if (!fontMap.containsKey(fontData)) {
-            if (fontMap.size() > 10) {
-                fontMap.clear();
+    public void buildMergedFont() throws IOException {
+        if (mergeFonts != null) {
+            getFontProgram();
+        }
+    }
+
+    private byte[] getFontProgram() throws IOException {
+        byte[] fontProgram = MergedFontRegistry.getInstance().getMergedFontSubset(mergedFontKey, mergeFonts);
+        if (mergeFonts instanceof MergeTTFonts && !usedGlyphsUnknown && !usedGlyphs.isEmpty()) {
+            //the codes are the glyph ids of the merged font, so the glyphs never written can be dropped
+            if (!usedGlyphs.equals(filteredGlyphs) || (fontProgram != filteredSource
+                    && !Arrays.equals(fontProgram, filteredSource))) {
+                filteredProgram = TrueTypeGlyphFilter.keepGlyphs(fontProgram, usedGlyphs);
+                filteredSource = fontProgram;
+                filteredGlyphs = (BitSet) usedGlyphs.clone();
             }
-            fontMap.put(fontData, new FontContainer(fontData));
+            return filteredProgram;
         }
-        return fontMap.get(fontData);
+        return fontProgram;
+    }
+
+    protected FontContainer getFont(COSDictionary fontData) throws IOException {
+        return fontCache.getFont(fontData);
+    }
+
+    public void setFontContainerCache(FontContainerCache fontCache) {
+        this.fontCache = fontCache;
     }
 
     protected static void setProperties(CustomFont cFont, PDFont font) {
@@ -377,20 +497,30 @@ public class FOPPDFMultiByteFont extends MultiByteFont implements FOPPDFFont {
         outMaxp.setMaxComponentDepth(outMaxp.getMaxComponentDepth() + mp.getMaxComponentDepth());
     }
 
-    public String getMappedWord(List<String> word, byte[] bytes, FontContainer oldFont) {
-        StringBuilder newHex = new StringBuilder();
-        for (String str : word) {
-            char c = str.charAt(0);
-            if (str.length() > 1) {
-                c = (char) str.hashCode();
-            }
-            if (hasChar(c)) {
-                int mapped = (int)mapChar(c);
-                newHex.append(String.format("%1$04x", mapped & 0xFFFF).toUpperCase(Locale.getDefault()));
-            } else {
-                return null;
+    public boolean writeMappedWord(byte[] bytes, FontContainer oldFont, StringBuilder out) throws IOException {
+        int count = codeMapping.writeHexString(bytes, oldFont, unicodeMapper, out);
+        if (count < 0) {
+            usedGlyphsUnknown = true;
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            usedGlyphs.set(codeMapping.getMappedCode(i));
+        }
+        return true;
+    }
+
+    private int mapUnicode(String str) {
+        char c = str.charAt(0);
+        if (str.length() > 1) {
+            Character multiCharKey = multiCharKeys.get(str);
+            if (multiCharKey == null) {
+                return -1;
             }
+            c = multiCharKey;
+        }
+        if (hasChar(c)) {
+            return mapChar(c);
         }
-        return "<" + newHex.toString() + ">";
+        return -1;
     }
 }
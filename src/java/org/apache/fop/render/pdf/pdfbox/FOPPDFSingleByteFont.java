@@ -19,16 +19,16 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
-import org.apache.fontbox.cff.CFFType1Font;
 import org.apache.fontbox.cmap.CMap;
 
 import org.apache.fontbox.ttf.CmapSubtable;
@@ -40,7 +40,6 @@ import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSNumber;
 
-import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.font.PDFont;
 import org.apache.pdfbox.pdmodel.font.PDFontDescriptor;
 import org.apache.pdfbox.pdmodel.font.PDTrueTypeFont;
@@ -61,17 +60,29 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
     private FontContainer font;
     protected PDFDictionary ref;
     protected Map<String, Integer> charMapGlobal = new LinkedHashMap<String, Integer>();
-    private Map<Integer, Integer> newWidth = new HashMap<Integer, Integer>();
-    private Map<String, byte[]> charStringsDict;
+    private IntIntMap newWidth = new IntIntMap();
+    private boolean widthsChanged = true;
     private List<MergeTTFonts.Cmap> newCmap = new ArrayList<MergeTTFonts.Cmap>();
-    private Map<Integer, String> encodingMap = new TreeMap<Integer, String>();
+    //glyph names indexed by code
+    private String[] encodingMap = new String[256];
+    private final Set<String> encodingNames = new HashSet<String>();
     private int encodingSkip;
     private MergeFonts mergeFonts;
     private String shortFontName;
-    private final Map<COSDictionary, FontContainer> fontMap = new HashMap<COSDictionary, FontContainer>();
+    private FontContainerCache fontCache;
+    private final CodeMapping codeMapping = new CodeMapping();
+    private final StringBuffer escapedWord = new StringBuffer();
+    private final MergedFontKey mergedFontKey = MergedFontRegistry.getInstance().isEnabled()
+            ? new MergedFontKey(getClass().getName()) : null;
 
     public FOPPDFSingleByteFont(COSDictionary fontData, String name) throws IOException {
+        this(fontData, name, new FontContainerCache());
+    }
+
+    public FOPPDFSingleByteFont(COSDictionary fontData, String name, FontContainerCache fontCache)
+        throws IOException {
         super(null, EmbeddingMode.FULL);
+        this.fontCache = fontCache;
         if (fontData.getItem(COSName.SUBTYPE) == COSName.TRUE_TYPE) {
             setFontType(FontType.TRUETYPE);
         }
@@ -160,36 +171,32 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
         return font.getToUnicodeCMap();
     }
 
-    private PDStream readFontFile(PDFont font) throws IOException {
+    private void readFontDescriptor(PDFont font) {
         PDFontDescriptor fd = font.getFontDescriptor();
         setFlags(fd.getFlags());
-        PDStream ff = fd.getFontFile3();
-        if (ff == null) {
-            ff = fd.getFontFile2();
-            if (ff == null) {
-                ff = fd.getFontFile();
-            }
-        } else {
+        if (fd.getFontFile3() != null) {
             setFontType(FontType.TYPE1C);
         }
-        if (ff == null) {
-            throw new IOException(font.getName() + " no font file");
-        }
-        return ff;
     }
 
     private void loadFontFile(FontContainer font) throws IOException {
-        PDStream ff = readFontFile(font.font);
-        mergeFontFile(ff.createInputStream(), font);
+        readFontDescriptor(font.font);
+        mergeFontFile(font);
         if (font.font instanceof PDTrueTypeFont) {
             TrueTypeFont ttfont = ((PDTrueTypeFont) font.font).getTrueTypeFont();
             CmapSubtable[] cmapList = ttfont.getCmap().getCmaps();
-            for (CmapSubtable c : cmapList) {
+            int[][] codeRanges = CmapCodeRanges.getCodeRanges(ttfont);
+            for (int i = 0; i < cmapList.length; i++) {
+                CmapSubtable c = cmapList[i];
                 MergeTTFonts.Cmap tempCmap = getNewCmap(c.getPlatformId(), c.getPlatformEncodingId());
-                for (int i = 0; i < 256 * 256; i++) {
-                    int gid = c.getGlyphId(i);
-                    if (gid != 0 && !tempCmap.glyphIdToCharacterCode.containsKey(i)) {
-                        tempCmap.glyphIdToCharacterCode.put(i, gid);
+                int[] ranges = codeRanges != null && codeRanges.length == cmapList.length
+                        ? codeRanges[i] : new int[] {0, 0xFFFF};
+                for (int r = 0; r < ranges.length; r += 2) {
+                    for (int code = ranges[r]; code <= ranges[r + 1]; code++) {
+                        int gid = c.getGlyphId(code);
+                        if (gid != 0) {
+                            tempCmap.addGlyphId(code, gid);
+                        }
                     }
                 }
             }
@@ -223,31 +230,30 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
     }
 
     public int[] getWidths() {
-        width = new int[getLastChar() - getFirstChar() + 1];
-        for (int i = getFirstChar(); i <= getLastChar(); i++) {
-            if (newWidth.containsKey(i)) {
+        if (widthsChanged) {
+            width = new int[getLastChar() - getFirstChar() + 1];
+            for (int i = getFirstChar(); i <= getLastChar(); i++) {
                 width[i - getFirstChar()] = newWidth.get(i);
-            } else {
-                width[i - getFirstChar()] = 0;
             }
+            widthsChanged = false;
         }
         return width.clone();
     }
 
     public String addFont(COSDictionary fontData) throws IOException {
+        codeMapping.clear();
         FontContainer font = getFont(fontData);
-        if ((font.font instanceof PDType1Font || font.font instanceof PDType1CFont) && differentGlyphData(font.font)) {
+        if ((font.font instanceof PDType1Font || font.font instanceof PDType1CFont) && differentGlyphData(font)) {
             return null;
         }
         mergeWidths(font);
         if (font.getFirstChar() < getFirstChar()) {
             setFirstChar(font.getFirstChar());
         }
-        for (int w : newWidth.keySet()) {
-            if (w > getLastChar()) {
-                setLastChar(w);
-            }
+        if (newWidth.getMaxKey() > getLastChar()) {
+            setLastChar(newWidth.getMaxKey());
         }
+        widthsChanged = true;
         loadFontFile(font);
         addEncoding(font);
         return getFontName();
@@ -257,46 +263,29 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
         return fontCount;
     }
 
-    private Map<String, byte[]> getCharStringsDict(PDFont font) throws IOException {
-        if (font instanceof PDType1Font) {
-            return ((PDType1Font)font).getType1Font().getCharStringsDict();
-        }
-        CFFType1Font cffFont = ((PDType1CFont) font).getCFFType1Font();
-        List<byte[]> bytes = cffFont.getCharStringBytes();
-        Map<String, byte[]> map = new HashMap<String, byte[]>();
-        for (int i = 0; i < bytes.size(); i++) {
-            map.put(cffFont.getCharset().getNameForGID(i), bytes.get(i));
-        }
-        return map;
-    }
-
-    private boolean differentGlyphData(PDFont otherFont) throws IOException {
-        if (charStringsDict == null) {
-            charStringsDict = getCharStringsDict(font.font);
-        }
-        Map<String, byte[]> otherFontMap = getCharStringsDict(otherFont);
-        for (Map.Entry<String, byte[]> s : otherFontMap.entrySet()) {
-            if (charStringsDict.containsKey(s.getKey())) {
-                int numberDiff = 0;
-                byte[] b1 = charStringsDict.get(s.getKey());
-                byte[] b2 = s.getValue();
-                int b1Index = b1.length - 1;
-                int b2Index = b2.length - 1;
-                while (b1Index >= 0 && b2Index >= 0) {
-                    if (b1[b1Index] != b2[b2Index]) {
-                        numberDiff++;
-                        if (numberDiff > 2) {
-                            break;
-                        }
-                    }
-                    b1Index--;
-                    b2Index--;
-                }
+    private boolean differentGlyphData(FontContainer otherFont) throws IOException {
+        GlyphFingerprints fingerprints = font.getGlyphFingerprints();
+        for (String name : fingerprints.getChangedGlyphs(otherFont.getGlyphFingerprints())) {
+            if (differentCharString(font.getCharString(name), otherFont.getCharString(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean differentCharString(byte[] b1, byte[] b2) {
+        int numberDiff = 0;
+        int b1Index = b1.length - 1;
+        int b2Index = b2.length - 1;
+        while (b1Index >= 0 && b2Index >= 0) {
+            if (b1[b1Index] != b2[b2Index]) {
+                numberDiff++;
                 if (numberDiff > 2) {
-//                        log.info(getFontName() + " " + s.getKey() + " not equal " + numberdiff);
                     return true;
                 }
             }
+            b1Index--;
+            b2Index--;
         }
         return false;
     }
@@ -357,21 +346,37 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
     }
 
     private void addEncoding(FontContainer fontForEnc) {
-        List<String> added = new ArrayList<String>(encodingMap.values());
+        List<String> added = new ArrayList<String>();
         Map<Integer, String> codeToName = getCodeToName(fontForEnc.getEncoding());
         for (int i = fontForEnc.getFirstChar(); i <= fontForEnc.getLastChar(); i++) {
-            if (codeToName.keySet().contains(i)) {
+            if (codeToName.containsKey(i)) {
                 String s = codeToName.get(i);
-                if (!added.contains(s) || !encodingMap.containsKey(i)) {
-                    if (!encodingMap.containsKey(i)) {
-                        encodingMap.put(i, s);
+                boolean mapped = getEncodingName(i) != null;
+                if (!encodingNames.contains(s) || !mapped) {
+                    if (!mapped) {
+                        setEncodingName(i, s);
                     } else {
-                        encodingMap.put(encodingSkip, s);
+                        setEncodingName(encodingSkip, s);
                         encodingSkip++;
                     }
+                    added.add(s);
                 }
             }
         }
+        encodingNames.addAll(added);
+    }
+
+    private String getEncodingName(int code) {
+        return code >= 0 && code < encodingMap.length ? encodingMap[code] : null;
+    }
+
+    private void setEncodingName(int code, String name) {
+        if (code >= encodingMap.length) {
+            String[] newEncodingMap = new String[Math.max(code + 1, encodingMap.length * 2)];
+            System.arraycopy(encodingMap, 0, newEncodingMap, 0, encodingMap.length);
+            encodingMap = newEncodingMap;
+        }
+        encodingMap[code] = name;
     }
 
     class FOPPDFEncoding implements SingleByteEncoding {
@@ -389,8 +394,13 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
         }
 
         public String[] getCharNameMap() {
-            Collection<String> v = encodingMap.values();
-            return v.toArray(new String[v.size()]);
+            List<String> names = new ArrayList<String>();
+            for (String name : encodingMap) {
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            return names.toArray(new String[names.size()]);
         }
 
         public char[] getUnicodeCharMap() {
@@ -413,7 +423,7 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
                 return fromStringToCharArray(cmapStrings);
             }
             cmap = true;
-            return toCharArray(encodingMap.keySet());
+            return getEncodingCodes();
         }
 
         private char[] fromStringToCharArray(Collection<String> list) {
@@ -427,13 +437,14 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
             return ret;
         }
 
-        private char[] toCharArray(Collection<Integer> list) {
-            char[] ret = new char[list.size()];
-            int i = 0;
-            for (int e : list) {
-                ret[i++] = (char)e;
+        private char[] getEncodingCodes() {
+            StringBuilder codes = new StringBuilder();
+            for (int i = 0; i < encodingMap.length; i++) {
+                if (encodingMap[i] != null) {
+                    codes.append((char) i);
+                }
             }
-            return ret;
+            return codes.toString().toCharArray();
         }
     }
 
@@ -453,56 +464,78 @@ public class FOPPDFSingleByteFont extends SingleByteFont implements FOPPDFFont {
         return false;
     }
 
-    private void mergeFontFile(InputStream ff, FontContainer pdFont) throws IOException {
+    private void mergeFontFile(FontContainer pdFont) throws IOException {
         if (mergeFonts == null) {
             if (getFontType() == FontType.TRUETYPE) {
                 mergeFonts = new MergeTTFonts(newCmap);
             } else if (getFontType() == FontType.TYPE1) {
-                mergeFonts = new MergeType1Fonts();
+                mergeFonts = new MergeType1Fonts(fontCache);
             } else {
                 mergeFonts = new MergeCFFFonts();
             }
         }
         Map<Integer, Integer> chars = new HashMap<Integer, Integer>();
         chars.put(0, 0);
-        mergeFonts.readFont(ff, shortFontName, pdFont, chars, false);
+        ByteBuffer fontFile = pdFont.getFontProgram();
+        mergeFonts.readFont(fontFile.duplicate(), shortFontName, pdFont, chars, false);
+        if (mergedFontKey != null) {
+            mergedFontKey.update(fontFile, shortFontName, pdFont, chars);
+        }
         fontCount++;
     }
 
     public InputStream getInputStream() throws IOException {
-        return new ByteArrayInputStream(mergeFonts.getMergedFontSubset());
+        return new ByteArrayInputStream(
+                MergedFontRegistry.getInstance().getMergedFontSubset(mergedFontKey, mergeFonts));
     }
 
-    protected FontContainer getFont(COSDictionary fontData) throws IOException {
-        if (!fontMap.containsKey(fontData)) {
-            if (fontMap.size() > 10) {
-                fontMap.clear();
-            }
-            fontMap.put(fontData, new FontContainer(fontData));
+    public void buildMergedFont() throws IOException {
+        if (mergeFonts != null) {
+            MergedFontRegistry.getInstance().getMergedFontSubset(mergedFontKey, mergeFonts);
         }
-        return fontMap.get(fontData);
     }
 
-    public String getMappedWord(List<String> word, byte[] bytes, FontContainer oldFont) {
-        StringBuffer newOct = new StringBuffer();
-        int i = 0;
-        for (String str : word) {
-            Integer mapped = getMapping(bytes[i], oldFont);
-            if (mapped == null) {
-                char c = str.charAt(0);
-                if (str.length() > 1) {
-                    c = (char) str.hashCode();
-                }
-                if (hasChar(c)) {
-                    mapped = (int)mapChar(c);
-                } else {
-                    return null;
+    protected FontContainer getFont(COSDictionary fontData) throws IOException {
+        return fontCache.getFont(fontData);
+    }
+
+    public void setFontContainerCache(FontContainerCache fontCache) {
+        this.fontCache = fontCache;
+    }
+
+    public boolean writeMappedWord(byte[] bytes, FontContainer oldFont, StringBuilder out) throws IOException {
+        int count = codeMapping.read(bytes, oldFont);
+        if (count < 0) {
+            return false;
+        }
+        escapedWord.setLength(0);
+        for (int i = 0; i < count; i++) {
+            if (!codeMapping.isMapped(i)) {
+                int mapped = mapCode(bytes[i], codeMapping.getUnicode(i), oldFont);
+                if (mapped < 0) {
+                    return false;
                 }
+                codeMapping.setMappedCode(i, mapped);
             }
-            PDFText.escapeStringChar((char)mapped.intValue(), newOct);
-            i++;
+            PDFText.escapeStringChar((char) codeMapping.getMappedCode(i), escapedWord);
+        }
+        out.append('(').append(escapedWord).append(')');
+        return true;
+    }
+
+    private int mapCode(byte code, String str, FontContainer oldFont) {
+        Integer mapped = getMapping(code, oldFont);
+        if (mapped != null) {
+            return mapped;
+        }
+        char c = str.charAt(0);
+        if (str.length() > 1) {
+            c = (char) str.hashCode();
+        }
+        if (hasChar(c)) {
+            return mapChar(c);
         }
-        return "(" + newOct.toString() + ")";
+        return -1;
     }
 
     private Integer getMapping(byte i, FontContainer oldFont) {
@@ -16,13 +16,20 @@
  */
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.fontbox.cff.CFFType1Font;
 import org.apache.fontbox.cmap.CMap;
 import org.apache.fontbox.cmap.CMapParser;
 import org.apache.fontbox.util.BoundingBox;
@@ -32,11 +39,15 @@ import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.common.COSArrayList;
+import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.font.PDCIDFont;
 import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDFontDescriptor;
 import org.apache.pdfbox.pdmodel.font.PDFontFactory;
 import org.apache.pdfbox.pdmodel.font.PDSimpleFont;
 import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.font.PDType1CFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.font.encoding.BuiltInEncoding;
 import org.apache.pdfbox.pdmodel.font.encoding.DictionaryEncoding;
 import org.apache.pdfbox.pdmodel.font.encoding.Encoding;
@@ -44,6 +55,8 @@ import org.apache.pdfbox.pdmodel.font.encoding.Encoding;
 public class FontContainer {
     private COSDictionary dict;
     private List<Integer> widths;
+    private GlyphFingerprints glyphFingerprints;
+    private SoftReference<byte[]> fontProgram;
     PDFont font;
 
     FontContainer(COSDictionary fontData) throws IOException {
@@ -90,6 +103,144 @@ public class FontContainer {
         return dict.getDictionaryObject(COSName.TO_UNICODE);
     }
 
+    /**
+     * Splits a string shown with this font into its character codes.
+     * @param bytes the string
+     * @param codes receives the codes, at least as long as the string
+     * @return the number of codes
+     * @throws IOException if the string can't be read
+     */
+    int readCodes(byte[] bytes, int[] codes) throws IOException {
+        if (!(font instanceof PDType0Font)) {
+            for (int i = 0; i < bytes.length; i++) {
+                codes[i] = bytes[i] & 0xFF;
+            }
+            return bytes.length;
+        }
+        CMap cmap = ((PDType0Font) font).getCMap();
+        String name = cmap == null ? null : cmap.getName();
+        if (("Identity-H".equals(name) || "Identity-V".equals(name)) && bytes.length % 2 == 0) {
+            for (int i = 0; i < bytes.length; i += 2) {
+                codes[i / 2] = (bytes[i] & 0xFF) << 8 | bytes[i + 1] & 0xFF;
+            }
+            return bytes.length / 2;
+        }
+        InputStream in = new ByteArrayInputStream(bytes);
+        int count = 0;
+        while (in.available() > 0) {
+            codes[count++] = font.readCode(in);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the fingerprints of the charstrings of a Type 1 or Type 1C font.
+     * @return the fingerprints
+     * @throws IOException if the font program can't be read
+     */
+    GlyphFingerprints getGlyphFingerprints() throws IOException {
+        if (glyphFingerprints == null) {
+            if (font instanceof PDType1Font) {
+                glyphFingerprints = new GlyphFingerprints(((PDType1Font) font).getType1Font().getCharStringsDict());
+            } else {
+                CFFType1Font cffFont = ((PDType1CFont) font).getCFFType1Font();
+                List<byte[]> bytes = cffFont.getCharStringBytes();
+                Map<String, byte[]> map = new HashMap<String, byte[]>();
+                for (int i = 0; i < bytes.size(); i++) {
+                    map.put(cffFont.getCharset().getNameForGID(i), bytes.get(i));
+                }
+                glyphFingerprints = new GlyphFingerprints(map);
+            }
+        }
+        return glyphFingerprints;
+    }
+
+    /**
+     * Returns a charstring of a Type 1 or Type 1C font.
+     * @param name the glyph name
+     * @return the charstring
+     * @throws IOException if the font program can't be read
+     */
+    byte[] getCharString(String name) throws IOException {
+        if (font instanceof PDType1Font) {
+            return ((PDType1Font) font).getType1Font().getCharStringsDict().get(name);
+        }
+        CFFType1Font cffFont = ((PDType1CFont) font).getCFFType1Font();
+        return cffFont.getCharStringBytes().get(cffFont.nameToGID(name));
+    }
+
+    /**
+     * Returns the embedded font program. The program is decoded the first time and shared by the
+     * callers, each of which gets its own read-only view. It is only softly held once the callers
+     * are done with it, so it may have to be decoded again.
+     * @return the program
+     * @throws IOException if the font has no embedded program or it can't be decoded
+     */
+    ByteBuffer getFontProgram() throws IOException {
+        byte[] program = fontProgram != null ? fontProgram.get() : null;
+        if (program == null) {
+            program = readFontProgram();
+            fontProgram = new SoftReference<byte[]>(program);
+        }
+        return ByteBuffer.wrap(program).asReadOnlyBuffer();
+    }
+
+    private byte[] readFontProgram() throws IOException {
+        PDFontDescriptor fd = font.getFontDescriptor();
+        if (font instanceof PDType0Font) {
+            fd = ((PDType0Font) font).getDescendantFont().getFontDescriptor();
+        }
+        PDStream ff = null;
+        if (fd != null) {
+            ff = fd.getFontFile3();
+            if (ff == null) {
+                ff = fd.getFontFile2();
+                if (ff == null) {
+                    ff = fd.getFontFile();
+                }
+            }
+        }
+        if (ff == null) {
+            throw new IOException(font.getName() + " no font file");
+        }
+        //the decoded length is known for TrueType and Type 1 programs, but it isn't trusted beyond
+        //the encoded length
+        COSStream stream = ff.getCOSObject();
+        long length = (long) stream.getInt(COSName.LENGTH1, 0) + stream.getInt(COSName.LENGTH2, 0)
+                + stream.getInt(COSName.getPDFName("Length3"), 0);
+        long encodedLength = stream.getLength();
+        if (length <= 0 || length > encodedLength) {
+            length = encodedLength;
+        }
+        InputStream is = ff.createInputStream();
+        try {
+            return readFully(is, (int) length);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream is, int expectedSize) throws IOException {
+        byte[] data = new byte[Math.max(expectedSize, 1024)];
+        int size = 0;
+        while (true) {
+            if (size == data.length) {
+                int b = is.read();
+                if (b == -1) {
+                    break;
+                }
+                data = Arrays.copyOf(data, data.length * 2);
+                data[size++] = (byte) b;
+            }
+            int n = is.read(data, size, data.length - size);
+            if (n == -1) {
+                break;
+            }
+            size += n;
+        }
+        return size == data.length ? data : Arrays.copyOf(data, size);
+    }
+
     List<Integer> getWidths() {
         if (widths == null) {
             COSArray array = (COSArray) dict.getDictionaryObject(COSName.WIDTHS);
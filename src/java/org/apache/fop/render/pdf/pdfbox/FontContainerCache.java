@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSDictionary;
+
+/**
+ * A least recently used cache of the parsed fonts of a source document, shared by the font
+ * merging classes so each font program is only parsed once. The font dictionaries are compared
+ * by identity.
+ */
+public class FontContainerCache {
+
+    /** the default number of fonts kept */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final int TYPE1_PROGRAM_CAPACITY = 16;
+
+    private final Map<COSDictionary, FontContainer> fonts;
+    private final Map<COSDictionary, FontSignature> signatures = new HashMap<COSDictionary, FontSignature>();
+    private final Map<ByteBuffer, Type1Program> type1Programs
+            = new LinkedHashMap<ByteBuffer, Type1Program>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Type1Program> eldest) {
+            return size() > TYPE1_PROGRAM_CAPACITY;
+        }
+    };
+    private int hits;
+    private int misses;
+
+    /**
+     * Creates a cache keeping {@link #DEFAULT_CAPACITY} fonts.
+     */
+    public FontContainerCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a cache.
+     * @param capacity the maximum number of fonts kept
+     */
+    public FontContainerCache(final int capacity) {
+        fonts = new LinkedHashMap<COSDictionary, FontContainer>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<COSDictionary, FontContainer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache of a source document, creating it if necessary.
+     * @param objectCachePerFile the object cache of the source document
+     * @return the font cache
+     */
+    static FontContainerCache getInstance(Map<Object, Object> objectCachePerFile) {
+        String key = FontContainerCache.class.getName();
+        FontContainerCache cache = (FontContainerCache) objectCachePerFile.get(key);
+        if (cache == null) {
+            cache = new FontContainerCache();
+            objectCachePerFile.put(key, cache);
+        }
+        return cache;
+    }
+
+    FontContainer getFont(COSDictionary fontData) throws IOException {
+        FontContainer font = fonts.get(fontData);
+        if (font == null) {
+            misses++;
+            font = new FontContainer(fontData);
+            fonts.put(fontData, font);
+        } else {
+            hits++;
+        }
+        return font;
+    }
+
+    /**
+     * Returns the signature of a font, which is read from the dictionaries the first time the font
+     * is seen so fonts which aren't merged don't need to be parsed.
+     * @param fontData the font dictionary
+     * @return the signature
+     */
+    FontSignature getSignature(COSDictionary fontData) {
+        FontSignature signature = signatures.get(fontData);
+        if (signature == null) {
+            signature = new FontSignature(fontData);
+            signatures.put(fontData, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Returns a Type 1 program parsed for merging.
+     * @param key the digest of the font file
+     * @return the program or null if it wasn't parsed yet or was dropped
+     */
+    Type1Program getType1Program(ByteBuffer key) {
+        return type1Programs.get(key);
+    }
+
+    void putType1Program(ByteBuffer key, Type1Program program) {
+        type1Programs.put(key, program);
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     * @return the hit count
+     */
+    public int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which had to parse the font.
+     * @return the miss count
+     */
+    public int getMissCount() {
+        return misses;
+    }
+}
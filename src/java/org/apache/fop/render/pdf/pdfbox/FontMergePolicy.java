@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import org.apache.pdfbox.cos.COSDictionary;
+
+import org.apache.fop.fonts.FontInfo;
+
+/**
+ * Decides which source fonts are merged when fonts are merged. A font which isn't merged keeps
+ * its own program and the text using it is copied as is.
+ */
+public interface FontMergePolicy {
+
+    /** merges all fonts */
+    FontMergePolicy ALWAYS = new FontMergePolicy() {
+        public boolean isMerged(FontInfo fontInfo, COSDictionary fontData, String uniqueFontName, int copies) {
+            return true;
+        }
+    };
+
+    /**
+     * Returns whether a source font is merged into a new merged font. This is asked until a merged
+     * font is created for the unique name, the fonts read later are always merged into it. The
+     * copies are the fonts of the source document with the same unique name, which are all merged
+     * if the font is, while the fonts not merged before are already written as they are.
+     * @param fontInfo the fonts of the target document
+     * @param fontData the font dictionary
+     * @param uniqueFontName the name of the merged font
+     * @param copies the number of fonts of the source document with the unique name, at least 1
+     * @return true to merge the font
+     */
+    boolean isMerged(FontInfo fontInfo, COSDictionary fontData, String uniqueFontName, int copies);
+}
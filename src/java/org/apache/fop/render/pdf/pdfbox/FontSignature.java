@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.font.encoding.Encoding;
+import org.apache.pdfbox.pdmodel.font.encoding.Type1Encoding;
+
+import org.apache.fop.fonts.truetype.OTFSubSetFile;
+
+/**
+ * Identifies a font for merging from its dictionaries and the headers of its program, without
+ * parsing the whole program. The unique name is the one
+ * {@link MergeFontsPDFWriter} would derive from the parsed font, fonts for which it can't be
+ * derived this way are left unidentified so the caller parses them instead. Only the start of
+ * a Flate encoded program is decoded, and more of it when the headers point further.
+ */
+final class FontSignature {
+
+    //the number of bytes of a program decoded at first
+    private static final int PROGRAM_START = 8192;
+
+    private boolean identified = true;
+    private String uniqueFontName;
+    private int programLimit = PROGRAM_START;
+    private boolean programTruncated;
+
+    /**
+     * Identifies a font.
+     * @param fontData the font dictionary
+     */
+    FontSignature(COSDictionary fontData) {
+        try {
+            uniqueFontName = readUniqueFontName(fontData);
+        } catch (IOException e) {
+            identified = false;
+        } catch (RuntimeException e) {
+            identified = false;
+        }
+    }
+
+    /**
+     * Returns whether the unique name is known.
+     * @return false if the font program has to be parsed to know the unique name
+     */
+    boolean isIdentified() {
+        return identified;
+    }
+
+    /**
+     * Returns the unique name.
+     * @return the name under which the font is merged or null if it isn't merged
+     */
+    String getUniqueFontName() {
+        return uniqueFontName;
+    }
+
+    /**
+     * Sets the unique name derived from the parsed font.
+     * @param uniqueFontName the name or null if the font isn't merged
+     */
+    void setUniqueFontName(String uniqueFontName) {
+        this.uniqueFontName = uniqueFontName;
+        identified = true;
+    }
+
+    private String readUniqueFontName(COSDictionary fontData) throws IOException {
+        while (true) {
+            identified = true;
+            programTruncated = false;
+            try {
+                return readUniqueFontNameFromStart(fontData);
+            } catch (IndexOutOfBoundsException e) {
+                if (!programTruncated) {
+                    throw e;
+                }
+                programLimit *= 4;
+            }
+        }
+    }
+
+    private String readUniqueFontNameFromStart(COSDictionary fontData) throws IOException {
+        String baseFont = fontData.getNameAsString(COSName.BASE_FONT);
+        COSName subtype = fontData.getCOSName(COSName.SUBTYPE);
+        if (COSName.TYPE3.equals(subtype) || baseFont == null) {
+            return null;
+        }
+        String name = MergeFontsPDFWriter.getName(baseFont) + "_" + subtype.getName();
+        if (COSName.TYPE0.equals(subtype)) {
+            return readType0Name(fontData, name, baseFont);
+        } else if (COSName.TRUE_TYPE.equals(subtype)) {
+            return MergeFontsPDFWriter.isSubsetFont(baseFont) ? readTrueTypeName(fontData, name) : null;
+        } else if (COSName.TYPE1.equals(subtype) || COSName.MM_TYPE1.equals(subtype)) {
+            return readType1Name(fontData, name);
+        }
+        return unidentified();
+    }
+
+    private String unidentified() {
+        identified = false;
+        return null;
+    }
+
+    private String readType0Name(COSDictionary fontData, String name, String baseFont) throws IOException {
+        COSBase descendants = fontData.getDictionaryObject(COSName.DESCENDANT_FONTS);
+        if (!(descendants instanceof COSArray) || ((COSArray) descendants).size() == 0
+                || !(((COSArray) descendants).getObject(0) instanceof COSDictionary)) {
+            return unidentified();
+        }
+        COSDictionary descendant = (COSDictionary) ((COSArray) descendants).getObject(0);
+        COSName subtype = descendant.getCOSName(COSName.SUBTYPE);
+        if (COSName.CID_FONT_TYPE0.equals(subtype)) {
+            byte[] cff = readCFF(descendant);
+            if (cff == null) {
+                return unidentified();
+            }
+            int[] topDict = CFFCharsetReader.getTopDict(cff, 0);
+            int fdSelect = CFFCharsetReader.readTopDictOperand(cff, topDict, CFFCharsetReader.FD_SELECT, 0);
+            boolean cid = CFFCharsetReader.readTopDictOperand(cff, topDict, CFFCharsetReader.ROS, -1) != -1;
+            return name + (cid && fdSelect > 0 && cff[fdSelect] == 0 ? "format0" : "") + "cff";
+        } else if (COSName.CID_FONT_TYPE2.equals(subtype)) {
+            if (fontData.getDictionaryObject(COSName.TO_UNICODE) == null) {
+                return null;
+            }
+            return MergeFontsPDFWriter.isSubsetFont(baseFont) ? name : name + "f3";
+        }
+        return unidentified();
+    }
+
+    private String readTrueTypeName(COSDictionary fontData, String name) throws IOException {
+        byte[] cmap = readCmap(readFontFile(fontData, COSName.FONT_FILE2));
+        if (cmap == null) {
+            return unidentified();
+        }
+        String extra = "";
+        int[] glyphs = CmapCodeRanges.getGlyphIds(cmap, 1);
+        for (int glyph : glyphs) {
+            if (glyph > 0) {
+                extra = "cid";
+            }
+        }
+        if (glyphs.length != 2) {
+            extra += "cmap" + glyphs.length;
+        }
+        return name + extra;
+    }
+
+    private String readType1Name(COSDictionary fontData, String name) throws IOException {
+        COSBase fd = fontData.getDictionaryObject(COSName.FONT_DESC);
+        if (!(fd instanceof COSDictionary) || !((COSDictionary) fd).containsKey(COSName.FONT_FILE3)) {
+            return name;
+        }
+        byte[] cff = readCFF(fontData);
+        if (cff == null) {
+            return unidentified();
+        }
+        int[] topDict = CFFCharsetReader.getTopDict(cff, 0);
+        if (CFFCharsetReader.readTopDictOperand(cff, topDict, CFFCharsetReader.ROS, -1) != -1) {
+            return unidentified();
+        }
+        String extra = "";
+        int cffEncoding = CFFCharsetReader.readTopDictOperand(cff, topDict, CFFCharsetReader.ENCODING, 0);
+        if (cffEncoding > 1) {
+            int format = cff[cffEncoding] & 0x7F;
+            if (format == 1) {
+                extra = "f1enc";
+            } else if (format == 0) {
+                extra = "f0enc";
+            }
+        }
+        int charStrings = CFFCharsetReader.readTopDictOperand(cff, topDict, CFFCharsetReader.CHAR_STRINGS, 0);
+        for (int sid : CFFCharsetReader.readSids(cff, 0, CFFCharsetReader.readCard16(cff, charStrings))) {
+            if (sid != 0) {
+                if (sid < OTFSubSetFile.NUM_STANDARD_STRINGS) {
+                    extra += "stdcs";
+                }
+                break;
+            }
+        }
+        int charset = CFFCharsetReader.readTopDictOperand(cff, topDict, CFFCharsetReader.CHARSET, 0);
+        if (charset > 2 && cff[charset] == 1) {
+            extra += "f1cs";
+        }
+        return name + extra + readEncodingName(fontData);
+    }
+
+    /**
+     * Returns the suffix for the encoding of an embedded Type 1 font.
+     */
+    private static String readEncodingName(COSDictionary fontData) {
+        COSBase encoding = fontData.getDictionaryObject(COSName.ENCODING);
+        if (encoding instanceof COSDictionary) {
+            return "";
+        } else if (encoding instanceof COSName && Encoding.getInstance((COSName) encoding) != null) {
+            return Encoding.getInstance((COSName) encoding).getClass().getSimpleName();
+        }
+        //the encoding is read from the font program
+        return Type1Encoding.class.getSimpleName();
+    }
+
+    private byte[] readCFF(COSDictionary fontData) throws IOException {
+        byte[] cff = readFontFile(fontData, COSName.FONT_FILE3);
+        return cff != null && cff.length > 4 && cff[0] == 1 ? cff : null;
+    }
+
+    private byte[] readFontFile(COSDictionary fontData, COSName key) throws IOException {
+        COSBase fd = fontData.getDictionaryObject(COSName.FONT_DESC);
+        if (!(fd instanceof COSDictionary)) {
+            return null;
+        }
+        COSBase fontFile = ((COSDictionary) fd).getDictionaryObject(key);
+        if (!(fontFile instanceof COSStream)) {
+            return null;
+        }
+        InputStream is = createInputStream((COSStream) fontFile);
+        try {
+            byte[] data = new byte[programLimit];
+            int size = 0;
+            while (size < data.length) {
+                int n = is.read(data, size, data.length - size);
+                if (n == -1) {
+                    return Arrays.copyOf(data, size);
+                }
+                size += n;
+            }
+            programTruncated = is.read() != -1;
+            return data;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Opens a font program. A Flate encoded program is decoded as it is read, other programs are
+     * decoded in full by PDFBox.
+     */
+    private static InputStream createInputStream(COSStream fontFile) throws IOException {
+        COSBase filter = fontFile.getFilters();
+        if (filter instanceof COSArray && ((COSArray) filter).size() == 1) {
+            filter = ((COSArray) filter).getObject(0);
+        }
+        if (filter == null || filter instanceof COSArray && ((COSArray) filter).size() == 0) {
+            return fontFile.createRawInputStream();
+        } else if (COSName.FLATE_DECODE.equals(filter)
+                && fontFile.getDictionaryObject(COSName.DECODE_PARMS, COSName.DP) == null) {
+            return new InflaterInputStream(fontFile.createRawInputStream());
+        }
+        return fontFile.createInputStream();
+    }
+
+    /**
+     * Finds the cmap table of a TrueType program.
+     * @return the table or null if there is no program or cmap table
+     */
+    private static byte[] readCmap(byte[] ttf) {
+        if (ttf == null || ttf.length < 12
+                || (readInt(ttf, 0) != 0x00010000 && readInt(ttf, 0) != 0x74727565)) {
+            return null;
+        }
+        int numTables = ((ttf[4] & 0xFF) << 8) | (ttf[5] & 0xFF);
+        for (int i = 0; i < numTables; i++) {
+            int record = 12 + i * 16;
+            if (readInt(ttf, record) == 0x636D6170) {
+                int offset = readInt(ttf, record + 8);
+                int length = readInt(ttf, record + 12);
+                byte[] cmap = new byte[length];
+                System.arraycopy(ttf, offset, cmap, 0, length);
+                return cmap;
+            }
+        }
+        return null;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A 64 bit fingerprint of each charstring of a Type 1 or Type 1C font, sorted by glyph name, so
+ * the glyphs of two fonts can be compared without keeping their charstrings around.
+ */
+final class GlyphFingerprints {
+
+    private final String[] names;
+    private final long[] fingerprints;
+
+    GlyphFingerprints(Map<String, byte[]> charStrings) {
+        names = charStrings.keySet().toArray(new String[charStrings.size()]);
+        Arrays.sort(names);
+        fingerprints = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            fingerprints[i] = getFingerprint(charStrings.get(names[i]));
+        }
+    }
+
+    /**
+     * Returns the glyphs of both fonts whose charstrings differ.
+     * @param other the other font
+     * @return the names of the glyphs
+     */
+    List<String> getChangedGlyphs(GlyphFingerprints other) {
+        List<String> changed = new ArrayList<String>();
+        int i = 0;
+        int j = 0;
+        while (i < names.length && j < other.names.length) {
+            int cmp = names[i].compareTo(other.names[j]);
+            if (cmp < 0) {
+                i++;
+            } else if (cmp > 0) {
+                j++;
+            } else {
+                if (fingerprints[i] != other.fingerprints[j]) {
+                    changed.add(names[i]);
+                }
+                i++;
+                j++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of some data.
+     * @param data the data
+     * @return the hash
+     */
+    static long getFingerprint(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
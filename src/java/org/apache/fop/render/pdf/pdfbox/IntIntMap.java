@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An open addressing map of non-negative int keys to int values, used for the glyph and width
+ * tables of the merged fonts instead of boxed maps.
+ */
+final class IntIntMap {
+
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int maxKey = -1;
+
+    IntIntMap() {
+        this(16);
+    }
+
+    IntIntMap(int expectedSize) {
+        int capacity = 8;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new int[capacity];
+    }
+
+    private int indexOf(int key) {
+        int mask = keys.length - 1;
+        int hash = key * 0x9E3779B9;
+        int i = (hash ^ (hash >>> 16)) & mask;
+        while (keys[i] != FREE && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    boolean containsKey(int key) {
+        return key >= 0 && keys[indexOf(key)] == key;
+    }
+
+    /**
+     * Returns the value of a key.
+     * @param key the key
+     * @return the value or 0 if the key isn't mapped
+     */
+    int get(int key) {
+        if (key < 0) {
+            return 0;
+        }
+        int i = indexOf(key);
+        return keys[i] == key ? values[i] : 0;
+    }
+
+    void put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int i = indexOf(key);
+        if (keys[i] == FREE) {
+            if ((size + 1) * 2 > keys.length) {
+                rehash();
+                i = indexOf(key);
+            }
+            keys[i] = key;
+            size++;
+            maxKey = Math.max(maxKey, key);
+        }
+        values[i] = value;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the highest key.
+     * @return the highest key or -1 if the map is empty
+     */
+    int getMaxKey() {
+        return maxKey;
+    }
+
+    /**
+     * Returns the keys in ascending order.
+     * @return the keys
+     */
+    int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != FREE) {
+                result[n++] = key;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the mappings as a sorted map.
+     * @return a new map
+     */
+    Map<Integer, Integer> toMap() {
+        Map<Integer, Integer> map = new TreeMap<Integer, Integer>();
+        for (int key : keys()) {
+            map.put(key, get(key));
+        }
+        return map;
+    }
+}
@@ -18,11 +18,7 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -41,6 +37,11 @@ import org.apache.fontbox.cff.CFFParser;
 import org.apache.fontbox.cff.CFFStandardEncoding;
 import org.apache.fontbox.cff.CFFStandardString;
 import org.apache.fontbox.cff.CFFType1Font;
+import org.apache.pdfbox.pdmodel.font.PDCIDFont;
+import org.apache.pdfbox.pdmodel.font.PDCIDFontType0;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.font.PDType1CFont;
 
 import org.apache.fop.fonts.cff.CFFDataReader;
 import org.apache.fop.fonts.truetype.FontFileReader;
@@ -58,22 +59,30 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
     private Map<Integer, Integer> range = new LinkedHashMap<Integer, Integer>();
     private int noOfFonts;
     private CFFEncoding encoding = null;
+    private byte[] mergedFontSubset;
 
     public MergeCFFFonts() throws IOException {
         gidToSID = new LinkedHashMap<Integer, Integer>();
         subsetCharStringsIndex = new ArrayList<byte[]>();
     }
 
-    public void readFont(InputStream is, String name, FontContainer fontContainer,
+    public void readFont(ByteBuffer fontProgram, String name, FontContainer fontContainer,
                          Map<Integer, Integer> subsetGlyphs, boolean cid) throws IOException {
         this.embeddedName = name;
-        FontFileReader fontFile = new FontFileReader(is);
-        CFFParser p = new CFFParser();
-        CFFFont ff = p.parse(fontFile.getAllBytes()).get(0);
+        FontFileReader fontFile = null;
+        CFFFont ff = getParsedFont(fontContainer, fontProgram);
+        if (ff == null) {
+            fontFile = new FontFileReader(new ByteBufferInputStream(fontProgram));
+            ff = parse(fontFile);
+        }
 
         if (used.containsAll(getStrings(ff).keySet())) {
             return;
         }
+        mergedFontSubset = null;
+        if (fontFile == null) {
+            fontFile = new FontFileReader(new ByteBufferInputStream(fontProgram));
+        }
         fontFileSize += fontFile.getFileSize();
         this.fontFile = fontFile;
         used.addAll(getStrings(ff).keySet());
@@ -87,7 +96,8 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
         subsetGlyphsList.add(sg);
         cffReader = new CFFDataReader(fontFile);
 
-        for (int sid : getSids(ff.getCharset())) {
+        int[] sids = CFFCharsetReader.getSids(ff);
+        for (int sid : sids) {
             if (sid >= NUM_STANDARD_STRINGS) {
                 int index = sid - NUM_STANDARD_STRINGS;
                 if (index <= cffReader.getStringIndex().getNumObjects()) {
@@ -109,7 +119,7 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
                 }
             }
         }
-        setupMapping(ff.getCharset(), sg);
+        setupMapping(sids, sg);
 
         for (Map.Entry<String, byte[]> s : getStrings(ff).entrySet()) {
             if (!added.contains(s.getKey())) {
@@ -122,17 +132,19 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
         String cClass = cSet.getClass().getName();
         if (cClass.equals("org.apache.fontbox.cff.CFFParser$Format1Charset")
                 || cClass.equals("org.apache.fontbox.cff.CFFParser$Format0Charset")) {
-            for (int sid : getSids(cSet)) {
-                range.put(sid, 0);
+            for (int sid : sids) {
+                if (sid != 0) {
+                    range.put(sid, 0);
+                }
             }
         }
         noOfFonts++;
     }
 
-    private void setupMapping(CFFCharset charset, Map<Integer, Integer> sg) {
+    private void setupMapping(int[] sids, Map<Integer, Integer> sg) {
         int subsetGlyphIndex = 0;
-        for (int sid : getSids(charset)) {
-            if (sg.containsKey(subsetGlyphIndex)) {
+        for (int sid : sids) {
+            if (sid != 0 && sg.containsKey(subsetGlyphIndex)) {
                 int gid = sg.get(subsetGlyphIndex);
 
                 //Check whether the SID falls into the standard string set
@@ -151,39 +163,36 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
         }
     }
 
-    public static List<Integer> getSids(CFFCharset cSet) {
-        List<Integer> sids = new ArrayList<Integer>();
-        try {
-            for (int gid = 0; gid < 1024; gid++) {
-                int sid = cSet.getCIDForGID(gid);
-                if (sid != 0) {
-                    sids.add(sid);
-                }
+    private static CFFFont parse(final FontFileReader fontFile) throws IOException {
+        //the source gives CFFCharsetReader access to the program
+        return new CFFParser().parse(fontFile.getAllBytes(), new CFFParser.ByteSource() {
+            public byte[] getBytes() {
+                return fontFile.getAllBytes();
             }
-        } catch (IllegalStateException e) {
-            try {
-                final Method getSIDForGID = CFFCharset.class.getDeclaredMethod("getSIDForGID", int.class);
-                AccessController.doPrivileged(new PrivilegedAction() {
-                    public Object run() {
-                        getSIDForGID.setAccessible(true);
-                        return null;
-                    }
-                });
-                for (int gid = 0; gid < 1024; gid++) {
-                    int sid = (Integer)getSIDForGID.invoke(cSet, gid);
-                    if (sid != 0) {
-                        sids.add(sid);
-                    }
-                }
-            } catch (NoSuchMethodException e1) {
-                throw new RuntimeException(e1);
-            } catch (InvocationTargetException e1) {
-                throw new RuntimeException(e1);
-            } catch (IllegalAccessException e1) {
-                throw new RuntimeException(e1);
+        }).get(0);
+    }
+
+    /**
+     * Returns the program PDFBox parsed when the font was loaded, so it isn't parsed again.
+     * @return the parsed program or null if the font has no parsed CFF program of its own
+     */
+    private static CFFFont getParsedFont(FontContainer fontContainer, ByteBuffer fontProgram) {
+        if (fontContainer == null || !fontProgram.hasRemaining() || fontProgram.get(fontProgram.position()) != 1) {
+            return null;
+        }
+        PDFont font = fontContainer.font;
+        if (!font.isEmbedded() || font.isDamaged()) {
+            return null;
+        }
+        if (font instanceof PDType1CFont) {
+            return ((PDType1CFont) font).getCFFType1Font();
+        } else if (font instanceof PDType0Font) {
+            PDCIDFont cidFont = ((PDType0Font) font).getDescendantFont();
+            if (cidFont instanceof PDCIDFontType0) {
+                return ((PDCIDFontType0) cidFont).getCFFFont();
             }
         }
-        return sids;
+        return null;
     }
 
     public static Map<String, byte[]> getStrings(CFFFont ff) throws IOException {
@@ -191,18 +200,18 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
         List<byte[]> csbytes = ff.getCharStringBytes();
         Map<String, byte[]> strings = new LinkedHashMap<String, byte[]>();
         int i = 0;
-        try {
-            for (int gid = 0; gid < 256; gid++) {
+        if (!cs.isCIDFont()) {
+            for (int gid = 0; gid < ff.getNumCharStrings(); gid++) {
                 String name = cs.getNameForGID(gid);
                 if (name != null && i < csbytes.size()) {
                     strings.put(name, csbytes.get(i));
                     i++;
                 }
             }
-        } catch (IllegalStateException e) {
+        } else {
             strings.put(".notdef", csbytes.get(0));
-            for (int sid : getSids(ff.getCharset())) {
-                if (i < csbytes.size()) {
+            for (int sid : CFFCharsetReader.getSids(ff)) {
+                if (sid != 0 && i < csbytes.size()) {
                     i++;
                     strings.put(readString(sid), csbytes.get(i));
                 }
@@ -219,7 +228,22 @@ public class MergeCFFFonts extends OTFSubSetFile implements MergeFonts {
         return "SID" + index;
     }
 
+    /**
+     * Returns the merged font, which is only built again once another font was read.
+     * @return the font program
+     * @throws IOException on error
+     */
     public byte[] getMergedFontSubset() throws IOException {
+        if (mergedFontSubset == null) {
+            mergedFontSubset = createMergedFontSubset();
+        }
+        return mergedFontSubset;
+    }
+
+    private byte[] createMergedFontSubset() throws IOException {
+        //start over if a font was read after the last build
+        currentPos = 0;
+        output.reset();
         if (noOfFonts == 1) {
             writeBytes(fontFile.getAllBytes());
             return super.getFontSubset();
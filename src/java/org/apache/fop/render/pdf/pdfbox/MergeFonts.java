@@ -17,11 +17,11 @@
 package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public interface MergeFonts {
-    void readFont(InputStream is, String name, FontContainer fontContainer,
+    void readFont(ByteBuffer fontProgram, String name, FontContainer fontContainer,
                          Map<Integer, Integer> subsetGlyphs, boolean cid) throws IOException;
     byte[] getMergedFontSubset() throws IOException;
 }
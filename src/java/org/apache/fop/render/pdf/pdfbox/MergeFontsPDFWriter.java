@@ -16,15 +16,17 @@
  */
 package org.apache.fop.render.pdf.pdfbox;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
@@ -37,6 +39,7 @@ import org.apache.fontbox.cff.CFFFont;
 import org.apache.fontbox.ttf.CmapSubtable;
 import org.apache.fontbox.ttf.TrueTypeFont;
 import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
@@ -64,22 +67,60 @@ public class MergeFontsPDFWriter extends PDFWriter {
     private COSDictionary fonts;
     private FontInfo fontInfo;
     private Typeface font;
+    private DocumentFontEncoder documentFont;
     private FontContainer oldFont = null;
     protected Map<COSName, String> fontsToRemove = new HashMap<COSName, String>();
-    private final Map<COSDictionary, FontContainer> fontMap = new HashMap<COSDictionary, FontContainer>();
+    private final Set<String> usedFontNames = new HashSet<String>();
+    private final FontContainerCache fontCache;
     private static final Pattern SUBSET_PATTERN = Pattern.compile("[A-Z][A-Z][A-Z][A-Z][A-Z][A-Z]\\+.+");
     private Collection<String> parentFonts;
+    private FontMergePolicy fontMergePolicy = FontMergePolicy.ALWAYS;
+    private SourceFontCopies sourceFontCopies;
+    private boolean useDocumentFonts;
+    private final Map<String, DocumentFontEncoder> documentFonts = new HashMap<String, DocumentFontEncoder>();
+    private Map<COSName, List<byte[]>> shownStrings = Collections.emptyMap();
+    private static final Set<String> SHOW_TEXT_OPERATORS = new HashSet<String>(Arrays.asList("Tj", "TJ", "'", "\""));
 
     public MergeFontsPDFWriter(COSDictionary fonts, FontInfo fontInfo, UniqueName key,
                                Collection<String> parentFonts, int mcid) {
+        this(fonts, fontInfo, key, parentFonts, mcid, new FontContainerCache());
+    }
+
+    public MergeFontsPDFWriter(COSDictionary fonts, FontInfo fontInfo, UniqueName key,
+                               Collection<String> parentFonts, int mcid, FontContainerCache fontCache) {
         super(key, mcid);
         this.fonts = fonts;
         this.fontInfo = fontInfo;
         this.parentFonts = parentFonts;
+        this.fontCache = fontCache;
+    }
+
+    /**
+     * Sets the policy deciding which fonts are merged, by default all fonts are.
+     * @param fontMergePolicy the policy
+     * @param sourceFontCopies the fonts of the source document merged into each merged font
+     */
+    void setFontMergePolicy(FontMergePolicy fontMergePolicy, SourceFontCopies sourceFontCopies) {
+        this.fontMergePolicy = fontMergePolicy;
+        this.sourceFontCopies = sourceFontCopies;
+    }
+
+    /**
+     * Makes imported TrueType CID fonts use the same font already embedded by FOP for the
+     * document, if there is one, instead of a merged font. This is only possible if the content
+     * written shares the resources of the target page, which are the ones holding the fonts.
+     * @param useDocumentFonts true to share the fonts embedded by FOP
+     */
+    public void setUseDocumentFonts(boolean useDocumentFonts) {
+        this.useDocumentFonts = useDocumentFonts;
     }
 
     public String writeText(PDStream pdStream) throws IOException {
-        String txt = super.writeText(pdStream);
+        List<Object> tokens = getTokens(pdStream);
+        if (useDocumentFonts) {
+            shownStrings = getShownStrings(tokens);
+        }
+        String txt = writeText(tokens);
         if (fontsToRemove.isEmpty()) {
             return null;
         }
@@ -91,6 +132,45 @@ public class MergeFontsPDFWriter extends PDFWriter {
         return txt;
     }
 
+    /**
+     * Collects the strings shown with each font resource, so a source font is only replaced by a
+     * document font if every code it shows can be re-encoded.
+     */
+    private static Map<COSName, List<byte[]>> getShownStrings(List<Object> tokens) {
+        Map<COSName, List<byte[]>> shown = new HashMap<COSName, List<byte[]>>();
+        List<COSBase> arguments = new ArrayList<COSBase>();
+        COSName current = null;
+        for (Object o : tokens) {
+            if (o instanceof Operator) {
+                String op = ((Operator) o).getName();
+                if (op.equals("Tf") && !arguments.isEmpty() && arguments.get(0) instanceof COSName) {
+                    current = (COSName) arguments.get(0);
+                } else if (current != null && SHOW_TEXT_OPERATORS.contains(op)) {
+                    List<byte[]> strings = shown.get(current);
+                    if (strings == null) {
+                        strings = new ArrayList<byte[]>();
+                        shown.put(current, strings);
+                    }
+                    addStrings(arguments, strings);
+                }
+                arguments.clear();
+            } else {
+                arguments.add((COSBase) o);
+            }
+        }
+        return shown;
+    }
+
+    private static void addStrings(Collection<? extends COSBase> arguments, List<byte[]> strings) {
+        for (COSBase c : arguments) {
+            if (c instanceof COSString) {
+                strings.add(((COSString) c).getBytes());
+            } else if (c instanceof COSArray) {
+                addStrings(((COSArray) c).toList(), strings);
+            }
+        }
+    }
+
     protected void readPDFArguments(Operator op, Collection<COSBase> arguments) throws IOException {
         for (COSBase c : arguments) {
             if (c instanceof COSName) {
@@ -98,32 +178,32 @@ public class MergeFontsPDFWriter extends PDFWriter {
                 COSDictionary fontData = (COSDictionary)fonts.getDictionaryObject(cn.getName());
                 String internalName = fontsToRemove.get(cn);
                 if (internalName == null && fontData != null) {
-                    internalName = getNewFont(fontData, fontInfo, fontsToRemove.values());
+                    internalName = getNewFont(cn, fontData, fontInfo, usedFontNames);
                 }
                 if (fontData == null || internalName == null) {
                     key.writeName(s, cn);
                     if (op.getName().equals("Tf")) {
                         font = null;
+                        documentFont = null;
                         oldFont = null;
                     }
                 } else {
                     s.append("/" + internalName);
                     fontsToRemove.put(cn, internalName);
+                    usedFontNames.add(internalName);
                     font = fontInfo.getUsedFonts().get(internalName);
+                    documentFont = documentFonts.get(internalName);
                     oldFont = getFont(fontData);
                 }
                 s.append(" ");
+            } else if (c instanceof COSString && documentFont != null) {
+                if (!documentFont.writeMappedWord(((COSString) c).getBytes(), oldFont, s)) {
+                    //every string was checked before the document font was chosen
+                    throw new IOException("String can't be re-encoded for " + documentFont.getFontName());
+                }
             } else if (c instanceof COSString && font != null && ((FOPPDFFont)font).size() != 1) {
-                List<String> word = readCOSString((COSString)c, oldFont);
-                if (word == null) {
+                if (!((FOPPDFFont)font).writeMappedWord(((COSString) c).getBytes(), oldFont, s)) {
                     s.append(PDFText.escapeString(getString((COSString) c)));
-                } else {
-                    String x = ((FOPPDFFont)font).getMappedWord(word, ((COSString) c).getBytes(), oldFont);
-                    if (x == null) {
-                        s.append(PDFText.escapeString(getString((COSString) c)));
-                    } else {
-                        s.append(x);
-                    }
                 }
             } else {
                 processArg(op, c);
@@ -131,23 +211,44 @@ public class MergeFontsPDFWriter extends PDFWriter {
         }
     }
 
-    private String getNewFont(COSDictionary fontData, FontInfo fontinfo, Collection<String> usedFonts)
+    private String getNewFont(COSName cn, COSDictionary fontData, FontInfo fontinfo, Set<String> usedFonts)
         throws IOException {
+        if (useDocumentFonts) {
+            //the names are compared before the source font is parsed
+            String name = DocumentFontEncoder.getDocumentFont(fontinfo, fontData);
+            if (name != null) {
+                FontContainer sourceFont = getFont(fontData);
+                DocumentFontEncoder encoder = documentFonts.get(name);
+                if (encoder == null) {
+                    encoder = new DocumentFontEncoder(fontinfo.getUsedFonts().get(name));
+                }
+                if (DocumentFontEncoder.hasSameWidths(fontinfo, name, sourceFont.font)
+                        && encoder.canEncode(sourceFont, shownStrings.get(cn))) {
+                    documentFonts.put(name, encoder);
+                    return name;
+                }
+            }
+        }
         String base = getUniqueFontName(fontData);
         if (base == null || usedFonts.contains(base) || (parentFonts != null && parentFonts.contains(base))) {
             return null;
         }
         try {
-            for (Typeface t : fontinfo.getUsedFonts().values()) {
-                if (t instanceof FOPPDFFont && base.equals(t.getFontName())) {
-                    return ((FOPPDFFont)t).addFont(fontData);
-                }
+            //merged fonts are registered under their unique name
+            Typeface t = fontinfo.getUsedFonts().get(base);
+            if (t instanceof FOPPDFFont && base.equals(t.getFontName())) {
+                ((FOPPDFFont)t).setFontContainerCache(fontCache);
+                return ((FOPPDFFont)t).addFont(fontData);
+            }
+            if (fontMergePolicy != FontMergePolicy.ALWAYS
+                    && !fontMergePolicy.isMerged(fontinfo, fontData, base, sourceFontCopies.getCopies(base))) {
+                return null;
             }
             if (base.endsWith("cid") || fontData.getItem(COSName.SUBTYPE) != COSName.TYPE1
                     && fontData.getItem(COSName.SUBTYPE) != COSName.TRUE_TYPE) {
-                fontinfo.addMetrics(base, new FOPPDFMultiByteFont(fontData, base));
+                fontinfo.addMetrics(base, new FOPPDFMultiByteFont(fontData, base, fontCache));
             } else {
-                fontinfo.addMetrics(base, new FOPPDFSingleByteFont(fontData, base));
+                fontinfo.addMetrics(base, new FOPPDFSingleByteFont(fontData, base, fontCache));
             }
         } catch (IOException e) {
             log.warn(e.getMessage());
@@ -158,7 +259,21 @@ public class MergeFontsPDFWriter extends PDFWriter {
     }
 
     private String getUniqueFontName(COSDictionary fontData) throws IOException {
-        FontContainer fontContainer = getFont(fontData);
+        FontSignature signature = fontCache.getSignature(fontData);
+        if (!signature.isIdentified()) {
+            signature.setUniqueFontName(getUniqueFontName(fontData, getFont(fontData)));
+        }
+        return signature.getUniqueFontName();
+    }
+
+    /**
+     * Derives the name under which a font is merged from the parsed font.
+     * @param fontData the font dictionary
+     * @param fontContainer the parsed font
+     * @return the name or null if the font isn't merged
+     * @throws IOException if the font program can't be read
+     */
+    static String getUniqueFontName(COSDictionary fontData, FontContainer fontContainer) throws IOException {
         PDFont font = fontContainer.font;
         if (font.getName() != null) {
             String extra = "";
@@ -200,7 +315,7 @@ public class MergeFontsPDFWriter extends PDFWriter {
         return null;
     }
 
-    private String getNamePDType1Font(String name, PDType1CFont font) throws IOException {
+    private static String getNamePDType1Font(String name, PDType1CFont font) throws IOException {
         String extra = "";
         CFFEncoding encoding = font.getCFFType1Font().getEncoding();
         String eClass = encoding.getClass().getName();
@@ -210,9 +325,13 @@ public class MergeFontsPDFWriter extends PDFWriter {
             extra = "f0enc";
         }
         CFFCharset cs = font.getCFFType1Font().getCharset();
-        List<Integer> sids = MergeCFFFonts.getSids(cs);
-        if (!sids.isEmpty() && sids.get(0) < OTFSubSetFile.NUM_STANDARD_STRINGS) {
-            extra += "stdcs";
+        for (int sid : CFFCharsetReader.getSids(font.getCFFType1Font())) {
+            if (sid != 0) {
+                if (sid < OTFSubSetFile.NUM_STANDARD_STRINGS) {
+                    extra += "stdcs";
+                }
+                break;
+            }
         }
         if (cs.getClass().getName().equals("org.apache.fontbox.cff.CFFParser$Format1Charset")) {
             extra += "f1cs";
@@ -242,32 +361,11 @@ public class MergeFontsPDFWriter extends PDFWriter {
         return new String(data, start, data.length - start, encoding);
     }
 
-    private List<String> readCOSString(COSString s, FontContainer oldFont) throws IOException {
-        List<String> word = new ArrayList<String>();
-        byte[] string = s.getBytes();
-        InputStream in = new ByteArrayInputStream(string);
-        while (in.available() > 0) {
-            int code = oldFont.font.readCode(in);
-            String unicode = oldFont.font.toUnicode(code);
-            if (unicode == null) {
-                return null;
-            }
-            word.add(unicode);
-        }
-        return word;
-    }
-
     protected FontContainer getFont(COSDictionary fontData) throws IOException {
-        if (!fontMap.containsKey(fontData)) {
-            if (fontMap.size() > 10) {
-                fontMap.clear();
-            }
-            fontMap.put(fontData, new FontContainer(fontData));
-        }
-        return fontMap.get(fontData);
+        return fontCache.getFont(fontData);
     }
 
-    private static boolean isSubsetFont(String s) {
+    static boolean isSubsetFont(String s) {
         return SUBSET_PATTERN.matcher(s).matches();
     }
 
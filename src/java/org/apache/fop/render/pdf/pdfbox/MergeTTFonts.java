@@ -18,10 +18,12 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
 
 import org.apache.fop.fonts.truetype.FontFileReader;
 import org.apache.fop.fonts.truetype.GlyfTable;
@@ -31,12 +33,25 @@ import org.apache.fop.fonts.truetype.OFTableName;
 import org.apache.fop.fonts.truetype.TTFSubSetFile;
 
 public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
-    private Map<Integer, Glyph> added = new TreeMap<Integer, Glyph>();
+    private static final OFTableName[] COPIED_TABLES = {OFTableName.HEAD, OFTableName.OS2, OFTableName.HHEA,
+        OFTableName.MAXP, OFTableName.CVT, OFTableName.FPGM, OFTableName.POST, OFTableName.PREP, OFTableName.NAME};
+    //the size of a composite glyph with a single component and byte offsets
+    private static final int REFERENCE_GLYPH_SIZE = 16;
+    private static final int ARGS_ARE_XY_VALUES = 0x0002;
+    //the glyphs indexed by subset index
+    private Glyph[] added = new Glyph[0];
+    private int addedCount;
     private int origIndexesLen;
     private int size;
     protected MaximumProfileTable maxp = new MaximumProfileTable();
     private Integer nhmtxDiff = null;
     private List<Cmap> cmap;
+    private byte[] mergedFontSubset;
+    //the data written for each glyph, duplicates replaced by references
+    private byte[][] outputGlyphs;
+    //the most points and contours of the glyphs written as references
+    private int referencedPoints;
+    private int referencedContours;
 
     static class Glyph {
         final byte[] data;
@@ -80,9 +95,9 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
 
                 Glyph g = new Glyph(glyphData, mtxTab[origGlyphIndex]);
                 if (!cid && (origIndexesLen == 0 || (glyphLength > 0 && i > 0))) {
-                    added.put(i, g);
+                    addGlyph(i, g);
                 } else if (cid) {
-                    added.put(i + origIndexesLen, g);
+                    addGlyph(i + origIndexesLen, g);
                 }
             }
             if (!cid) {
@@ -95,6 +110,18 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         }
     }
 
+    private void addGlyph(int index, Glyph g) {
+        if (index >= added.length) {
+            Glyph[] newAdded = new Glyph[Math.max(index + 1, added.length * 2)];
+            System.arraycopy(added, 0, newAdded, 0, added.length);
+            added = newAdded;
+        }
+        if (added[index] == null) {
+            addedCount++;
+        }
+        added[index] = g;
+    }
+
     private void createGlyf() throws IOException {
         OFDirTabEntry entry = dirTabs.get(OFTableName.GLYF);
         int size = 0;
@@ -109,16 +136,14 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
              * location offset.
              */
             glyphOffsets = new int[origIndexesLen];
-            for (Map.Entry<Integer, Glyph> gly : added.entrySet()) {
-                byte[] glyphData = gly.getValue().data;
-                int glyphLength = glyphData.length;
-                int i = gly.getKey();
-                if (i >= origIndexesLen) {
+            for (int i = 0; i < added.length && i < origIndexesLen; i++) {
+                if (added[i] == null) {
                     continue;
                 }
+                int glyphLength = outputGlyphs[i].length;
                 int endOffset1 = endOffset;
                 // Copy glyph
-                writeBytes(glyphData);
+                writeBytes(outputGlyphs[i]);
                 // Update loca table
                 if (cid || locaFormat == 1) {
                     writeULong(locaOffset + i * 4, currentPos - startPos);
@@ -143,9 +168,9 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
 
             // Update loca checksum and last loca index
             if (cid || locaFormat == 1) {
-                writeULong(locaOffset + added.size() * 4, endOffset);
+                writeULong(locaOffset + addedCount * 4, endOffset);
             }
-            int locaSize = added.size() * 4 + 4;
+            int locaSize = addedCount * 4 + 4;
             int checksum = getCheckSum(output, locaOffset, locaSize);
             writeULong(offsets.get(OFTableName.LOCA), checksum);
             int padSize = (locaOffset + locaSize) % 4;
@@ -155,10 +180,12 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
             if (!cid && locaFormat == 0) {
                 int i = 0;
                 int offset = 0;
-                for (Glyph e : added.values()) {
-                    writeUShort(locaOffset + i * 2, offset / 2);
-                    offset += e.data.length;
-                    i++;
+                for (byte[] data : outputGlyphs) {
+                    if (data != null) {
+                        writeUShort(locaOffset + i * 2, offset / 2);
+                        offset += data.length;
+                        i++;
+                    }
                 }
                 writeUShort(locaOffset + i * 2, offset / 2);
             }
@@ -181,13 +208,15 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
             pad4();
             // int offset = (int)entry.offset;
 
-            int longHorMetricSize = added.size() * 2;
-            int leftSideBearingSize = added.size() * 2;
+            int longHorMetricSize = addedCount * 2;
+            int leftSideBearingSize = addedCount * 2;
             int hmtxSize = longHorMetricSize + leftSideBearingSize;
 
-            for (Map.Entry<Integer, Glyph> e : added.entrySet()) {
-                Integer subsetIndex = e.getKey();
-                OFMtxEntry mtx = e.getValue().mtx;
+            for (int subsetIndex = 0; subsetIndex < added.length; subsetIndex++) {
+                if (added[subsetIndex] == null) {
+                    continue;
+                }
+                OFMtxEntry mtx = added[subsetIndex].mtx;
                 writeUShort(currentPos + subsetIndex * 4,
                         mtx.getWx());
                 writeUShort(currentPos + subsetIndex * 4 + 2,
@@ -215,11 +244,28 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
      */
     public void readFont(InputStream is, String name, FontContainer fontContainer,
                          Map<Integer, Integer> subsetGlyphs, boolean cid) throws IOException {
+        readFont(ByteBuffer.wrap(IOUtils.toByteArray(is)), name, fontContainer, subsetGlyphs, cid);
+    }
+
+    /**
+     * Returns a subset of the original font.
+     *
+     * @param fontProgram the font program, the view is consumed
+     * @param name name
+     * @param fontContainer fontContainer
+     * @param subsetGlyphs Map of glyphs (glyphs has old index as (Integer) key and
+     * new index as (Integer) value)
+     * @param cid is cid
+     * @throws IOException in case of an I/O problem
+     */
+    public void readFont(ByteBuffer fontProgram, String name, FontContainer fontContainer,
+                         Map<Integer, Integer> subsetGlyphs, boolean cid) throws IOException {
         this.cid = cid;
         if (subsetGlyphs.isEmpty()) {
             return;
         }
-        this.fontFile = new FontFileReader(is);
+        mergedFontSubset = null;
+        this.fontFile = new FontFileReader(new ByteBufferInputStream(fontProgram));
         size += fontFile.getAllBytes().length;
 
         readDirTabs();
@@ -273,12 +319,30 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         }
     }
 
+    /**
+     * Returns the merged font, which is only built again once another font was read.
+     * @return the font program
+     * @throws IOException on error
+     */
     public byte[] getMergedFontSubset() throws IOException {
-        int sgsize = added.size();
+        if (mergedFontSubset == null) {
+            mergedFontSubset = createMergedFontSubset();
+        }
+        return mergedFontSubset;
+    }
+
+    private byte[] createMergedFontSubset() throws IOException {
+        int sgsize = addedCount;
         if (sgsize == 1 && size == fontFile.getAllBytes().length) {
             return fontFile.getAllBytes();
         }
-        output = new byte[size * 2];
+        if (!cid) {
+            mergeUniCmap(cmap);
+        }
+        readGlyphData();
+        output = new byte[getMaxSubsetSize()];
+        currentPos = 0;
+        realSize = 0;
         createDirectory();     // Create the TrueType header and directory
         if (!cid) {
             writeCMAP(cmap);
@@ -309,17 +373,104 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         return getFontSubset();
     }
 
+    /**
+     * Fills in the data written for each glyph. A simple glyph identical to one written before,
+     * typically the same glyph taken from several documents, is written as a composite of that
+     * glyph so its outline is only stored once while the glyph ids stay the same.
+     */
+    private void readGlyphData() {
+        outputGlyphs = new byte[added.length][];
+        referencedPoints = 0;
+        referencedContours = 0;
+        Map<ByteBuffer, Integer> written = new HashMap<ByteBuffer, Integer>();
+        //the short loca table only has the glyphs which were added
+        boolean compact = !cid && locaFormat == 0;
+        int glyphId = 0;
+        for (int i = 0; i < added.length; i++) {
+            if (added[i] == null) {
+                continue;
+            }
+            byte[] data = added[i].data;
+            outputGlyphs[i] = data;
+            int contours = data.length > REFERENCE_GLYPH_SIZE ? (short) readUShort(data, 0) : 0;
+            if (10 + contours * 2 > data.length) {
+                contours = 0;
+            }
+            //the merged maxp is needed to account for the composites
+            if (contours > 0 && maxp.getVersion() != 0 && i < origIndexesLen) {
+                ByteBuffer key = ByteBuffer.wrap(data);
+                Integer first = written.get(key);
+                if (first == null) {
+                    written.put(key, compact ? glyphId : i);
+                } else {
+                    outputGlyphs[i] = createReference(data, first);
+                    referencedContours = Math.max(referencedContours, contours);
+                    referencedPoints = Math.max(referencedPoints, readUShort(data, 10 + (contours - 1) * 2) + 1);
+                }
+            }
+            glyphId++;
+        }
+    }
+
+    private static byte[] createReference(byte[] data, int glyphId) {
+        byte[] reference = new byte[REFERENCE_GLYPH_SIZE];
+        //numberOfContours -1 and the bounding box of the glyph
+        reference[0] = (byte) 0xFF;
+        reference[1] = (byte) 0xFF;
+        System.arraycopy(data, 2, reference, 2, 8);
+        reference[11] = ARGS_ARE_XY_VALUES;
+        reference[12] = (byte) (glyphId >> 8);
+        reference[13] = (byte) glyphId;
+        return reference;
+    }
+
+    private static int readUShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    /**
+     * Returns the most the merged font can take, from the merged glyphs and cmaps and the tables
+     * copied from the last font read.
+     */
+    private int getMaxSubsetSize() {
+        //the directory entry and padding of each table
+        int result = 12 + (dirTabs.size() + 16) * 20;
+        for (OFTableName table : COPIED_TABLES) {
+            OFDirTabEntry entry = dirTabs.get(table);
+            if (entry != null) {
+                result += (int) entry.getLength();
+            }
+        }
+        //maxp written from the merged profile
+        result += 32;
+        if (!cid) {
+            result += 4 + cmap.size() * 8;
+            for (Cmap c : cmap) {
+                result += 16 + c.size() * 12 + Math.max(0, c.getLastCode() - c.getFirstCode() + 1) * 2;
+            }
+        }
+        //hmtx and loca
+        result += (Math.max(added.length, origIndexesLen) + 1) * 8;
+        for (int i = 0; i < added.length; i++) {
+            if (added[i] != null) {
+                result += added[i].data.length;
+            }
+        }
+        //glyf padding
+        return result + 12;
+    }
+
     private void writeMaxp() {
         int checksum = currentPos;
         pad4();
         int startPos = currentPos;
         writeUShort((int) maxp.getVersion()); //version
         writeUShort(0);
-        writeUShort(added.size()); //numGlyphs
+        writeUShort(addedCount); //numGlyphs
         writeUShort(maxp.getMaxPoints()); //maxPoints
         writeUShort(maxp.getMaxContours()); //maxContours
-        writeUShort(maxp.getMaxCompositePoints()); //maxCompositePoints
-        writeUShort(maxp.getMaxCompositeContours()); //maxCompositeContours
+        writeUShort(Math.max(maxp.getMaxCompositePoints(), referencedPoints)); //maxCompositePoints
+        writeUShort(Math.max(maxp.getMaxCompositeContours(), referencedContours)); //maxCompositeContours
         writeUShort(maxp.getMaxZones()); //maxZones
         writeUShort(maxp.getMaxTwilightPoints()); //maxTwilightPoints
         writeUShort(maxp.getMaxStorage()); //maxStorage
@@ -327,15 +478,14 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         writeUShort(maxp.getMaxInstructionDefs()); //maxInstructionDefs
         writeUShort(maxp.getMaxStackElements()); //maxStackElements
         writeUShort(maxp.getMaxSizeOfInstructions()); //maxSizeOfInstructions
-        writeUShort(maxp.getMaxComponentElements()); //maxComponentElements
-        writeUShort(maxp.getMaxComponentDepth()); //maxComponentDepth
+        int minComponents = referencedContours > 0 ? 1 : 0;
+        writeUShort(Math.max(maxp.getMaxComponentElements(), minComponents)); //maxComponentElements
+        writeUShort(Math.max(maxp.getMaxComponentDepth(), minComponents)); //maxComponentDepth
         updateCheckSum(checksum, currentPos - startPos, OFTableName.MAXP);
         realSize += currentPos - startPos;
     }
 
     private void writeCMAP(List<Cmap> cmaps) {
-        mergeUniCmap(cmaps);
-
         int checksum = currentPos;
         pad4();
         int cmapPos = currentPos;
@@ -354,44 +504,35 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         for (Cmap cmap : cmaps) {
             if (cmap.platformId == 1 && cmaps.size() == 1) {
                 writeUShort(6); //subtableFormat
-                int firstCode = -1;
-                int lastCode = -1;
-                List<Integer> codes = new ArrayList<Integer>();
-                for (Map.Entry<Integer, Integer> g : cmap.glyphIdToCharacterCode.entrySet()) {
-                    if (firstCode < 0) {
-                        firstCode = g.getKey();
-                    }
-                    while (lastCode > 0 && lastCode + 1 < g.getKey()) {
-                        codes.add(0);
-                        lastCode++;
-                    }
-                    codes.add(g.getValue());
-                    lastCode = g.getKey();
-                }
-                writeUShort((codes.size() * 2) + 6); //length
+                int firstCode = cmap.getFirstCode();
+                int entryCount = cmap.getLastCode() - firstCode + 1;
+                writeUShort((entryCount * 2) + 6); //length
                 writeUShort(0); //version
                 writeUShort(firstCode); //firstCode
-                writeUShort(codes.size()); //entryCount
-                for (int i : codes) {
-                    writeUShort(i);
+                writeUShort(entryCount); //entryCount
+                for (int code = firstCode; code <= cmap.getLastCode(); code++) {
+                    writeUShort(cmap.getGlyphId(code));
                 }
             } else {
                 writeUShort(12); //subtableFormat
                 writeUShort(0);
-                writeULong(currentPos, (cmap.glyphIdToCharacterCode.size() * 12) + 16);
+                writeULong(currentPos, (cmap.size() * 12) + 16);
                 currentPos += 4;
                 writeULong(currentPos, 0);
                 currentPos += 4;
-                writeULong(currentPos, cmap.glyphIdToCharacterCode.size());
+                writeULong(currentPos, cmap.size());
                 currentPos += 4;
 
-                for (Map.Entry<Integer, Integer> g : cmap.glyphIdToCharacterCode.entrySet()) {
-                    writeULong(currentPos, g.getKey());
-                    currentPos += 4;
-                    writeULong(currentPos, g.getKey());
-                    currentPos += 4;
-                    writeULong(currentPos, g.getValue());
-                    currentPos += 4;
+                for (int code = cmap.getFirstCode(); code <= cmap.getLastCode(); code++) {
+                    int glyphId = cmap.getGlyphId(code);
+                    if (glyphId != 0) {
+                        writeULong(currentPos, code);
+                        currentPos += 4;
+                        writeULong(currentPos, code);
+                        currentPos += 4;
+                        writeULong(currentPos, glyphId);
+                        currentPos += 4;
+                    }
                 }
             }
         }
@@ -409,7 +550,12 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         }
         if (uniCmap != null) {
             for (Cmap cmap : cmaps) {
-                uniCmap.glyphIdToCharacterCode.putAll(cmap.glyphIdToCharacterCode);
+                for (int code = cmap.getFirstCode(); code <= cmap.getLastCode(); code++) {
+                    int glyphId = cmap.getGlyphId(code);
+                    if (glyphId != 0) {
+                        uniCmap.setGlyphId(code, glyphId);
+                    }
+                }
             }
         }
     }
@@ -418,7 +564,7 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         int result = 0;
         for (int i = 0; i < index; i++) {
             Cmap curCmap = cmaps.get(i);
-            result += (curCmap.glyphIdToCharacterCode.size() * 12) + 16;
+            result += (curCmap.size() * 12) + 16;
         }
         return result;
     }
@@ -444,14 +590,61 @@ public class MergeTTFonts extends TTFSubSetFile implements MergeFonts {
         return origIndexes;
     }
 
+    /**
+     * A 16 bit character code to glyph index mapping, indexed by the code, 0 meaning not mapped.
+     */
     public static class Cmap {
         int platformId;
         int platformEncodingId;
-        Map<Integer, Integer> glyphIdToCharacterCode = new TreeMap<Integer, Integer>();
+        private int[] glyphIds = new int[256];
+        private int size;
+        private int firstCode;
+        private int lastCode = -1;
 
         public Cmap(int platformID, int platformEncodingID) {
             this.platformId = platformID;
             this.platformEncodingId = platformEncodingID;
         }
+
+        int getGlyphId(int code) {
+            return code < glyphIds.length ? glyphIds[code] : 0;
+        }
+
+        /**
+         * Maps a code unless it is already mapped.
+         */
+        void addGlyphId(int code, int glyphId) {
+            if (getGlyphId(code) == 0) {
+                setGlyphId(code, glyphId);
+            }
+        }
+
+        void setGlyphId(int code, int glyphId) {
+            if (code >= glyphIds.length) {
+                int[] newGlyphIds = new int[Math.max(code + 1, Math.min(glyphIds.length * 2, 0x10000))];
+                System.arraycopy(glyphIds, 0, newGlyphIds, 0, glyphIds.length);
+                glyphIds = newGlyphIds;
+            }
+            if (glyphIds[code] == 0) {
+                if (size == 0 || code < firstCode) {
+                    firstCode = code;
+                }
+                lastCode = Math.max(lastCode, code);
+                size++;
+            }
+            glyphIds[code] = glyphId;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getFirstCode() {
+            return firstCode;
+        }
+
+        int getLastCode() {
+            return lastCode;
+        }
     }
 }
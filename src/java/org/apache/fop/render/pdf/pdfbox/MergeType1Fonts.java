@@ -18,7 +18,7 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -46,8 +46,22 @@ public class MergeType1Fonts extends Type1SubsetFile implements MergeFonts {
     private ByteArrayOutputStream subrsBeforeStream = new ByteArrayOutputStream();
     private ByteArrayOutputStream subrsEndStream = new ByteArrayOutputStream();
     private Map<Integer, byte[]> subByteMap = new HashMap<Integer, byte[]>();
+    private byte[] mergedFontSubset;
+    private Type1Program program;
+    private final FontContainerCache fontCache;
+    private Map<Integer, String> indexedEntries;
+    private Map<String, List<String>> encodingIndex;
 
     public MergeType1Fonts() {
+        this(null);
+    }
+
+    /**
+     * Creates a merger which keeps the parsed programs in the cache of the source document.
+     * @param fontCache the font cache of the source document, may be null
+     */
+    public MergeType1Fonts(FontContainerCache fontCache) {
+        this.fontCache = fontCache;
         uniqueSubs = new LinkedHashMap<Integer, byte[]>();
         subsetCharStrings = new HashMap<String, byte[]>();
         charNames = new ArrayList<String>();
@@ -55,12 +69,17 @@ public class MergeType1Fonts extends Type1SubsetFile implements MergeFonts {
         subsetEncodingEntries.add("dup 0 /.notdef put");
     }
 
-    public void readFont(InputStream fontFile, String name, FontContainer font,
+    public void readFont(ByteBuffer fontProgram, String name, FontContainer font,
                          Map<Integer, Integer> subsetGlyphs, boolean cid) throws IOException {
-        PFBParser pfbParser = new PFBParser();
-        pfbData = pfbParser.parsePFB(fontFile);
+        mergedFontSubset = null;
+        program = getProgram(fontProgram);
+        pfbData = program.pfbData;
+        headerSection = program.headerSection;
+        encoding = program.encoding;
+        decoded = program.decoded;
+        mainSection = program.mainSection;
+        charStrings = program.charStrings;
 
-        PostscriptParser psParser = new PostscriptParser();
         List<Integer> glyphs = new ArrayList<Integer>();
         Type1Font t1f = ((PDType1Font)font.font).getType1Font();
         Encoding enc = t1f.getEncoding();
@@ -72,12 +91,6 @@ public class MergeType1Fonts extends Type1SubsetFile implements MergeFonts {
         }
         Collections.sort(glyphs);
 
-        headerSection = psParser.parse(pfbData.getHeaderSegment());
-        encoding = getElement("/Encoding", headerSection);
-        if (encoding.getFoundUnexpected()) {
-            throw new IOException("unable to interpret postscript on arrays");
-        }
-
         List<String> encodingEntries = readEncoding(glyphs, encoding);
         for (String e : encodingEntries) {
             if (e != null && !subsetEncodingEntries.contains(e)) {
@@ -85,10 +98,7 @@ public class MergeType1Fonts extends Type1SubsetFile implements MergeFonts {
             }
         }
 
-        decoded = BinaryCoder.decodeBytes(pfbData.getEncryptedSegment(), 55665, 4);
-        mainSection = psParser.parse(decoded);
-        PostscriptParser.PSFixedArray subroutines = (PostscriptParser.PSFixedArray)getElement("/Subrs", mainSection);
-        charStrings = getElement("/CharStrings", mainSection);
+        PostscriptParser.PSElement subroutines = program.subroutines;
         if (subroutines != null) {
             subrsBeforeStream.reset();
             subrsBeforeStream.write(decoded, 0, subroutines.getStartPoint());
@@ -104,26 +114,75 @@ public class MergeType1Fonts extends Type1SubsetFile implements MergeFonts {
             subByteMap.put(i, subArray.get(i));
         }
         Map<String, byte[]> cs = t1f.getCharStringsDict();
+        for (String e : cs.keySet()) {
+            byte[] charStringEntry = getCharString("/" + e);
+            if (charStringEntry != null) {
+                subsetCharStrings.put("/" + e, charStringEntry);
+            }
+        }
+    }
+
+    private Type1Program getProgram(ByteBuffer fontFile) throws IOException {
+        ByteBuffer key = null;
+        if (fontCache != null) {
+            key = Type1Program.getKey(fontFile);
+            Type1Program cached = fontCache.getType1Program(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        PFBData pfb = new PFBParser().parsePFB(new ByteBufferInputStream(fontFile));
+        PostscriptParser psParser = new PostscriptParser();
+        List<PostscriptParser.PSElement> header = psParser.parse(pfb.getHeaderSegment());
+        PostscriptParser.PSElement enc = getElement("/Encoding", header);
+        if (enc.getFoundUnexpected()) {
+            throw new IOException("unable to interpret postscript on arrays");
+        }
+        byte[] decrypted = BinaryCoder.decodeBytes(pfb.getEncryptedSegment(), 55665, 4);
+        List<PostscriptParser.PSElement> main = psParser.parse(decrypted);
         int lenIV = 4;
-        PostscriptParser.PSElement element = getElement("/lenIV", mainSection);
+        PostscriptParser.PSElement element = getElement("/lenIV", main);
         if (element != null && element instanceof PostscriptParser.PSVariable) {
             PostscriptParser.PSVariable lenIVVar = (PostscriptParser.PSVariable)element;
             lenIV = Integer.parseInt(lenIVVar.getValue());
         }
-        for (String e : cs.keySet()) {
-            int[] be = charStrings.getBinaryEntries().get("/" + e);
+        Type1Program parsed = new Type1Program(pfb, header, enc, decrypted, main, getElement("/Subrs", main),
+                getElement("/CharStrings", main), lenIV);
+        if (fontCache != null) {
+            fontCache.putType1Program(key, parsed);
+        }
+        return parsed;
+    }
+
+    private byte[] getCharString(String name) {
+        if (!program.hasCharString(name)) {
+            byte[] charStringEntry = null;
+            int[] be = program.charStrings.getBinaryEntries().get(name);
             if (be != null) {
-                byte[] charStringEntry = getBinaryEntry(be, decoded);
-                if (lenIV != 4) {
-                    charStringEntry = BinaryCoder.decodeBytes(charStringEntry, 4330, lenIV);
+                charStringEntry = getBinaryEntry(be, program.decoded);
+                if (program.lenIV != 4) {
+                    charStringEntry = BinaryCoder.decodeBytes(charStringEntry, 4330, program.lenIV);
                     charStringEntry = BinaryCoder.encodeBytes(charStringEntry, 4330, 4);
                 }
-                subsetCharStrings.put("/" + e, charStringEntry);
             }
+            program.putCharString(name, charStringEntry);
         }
+        return program.getCharString(name);
     }
 
+    /**
+     * Returns the merged font, which is only built again once another font was read.
+     * @return the font program
+     * @throws IOException on error
+     */
     public byte[] getMergedFontSubset() throws IOException {
+        if (mergedFontSubset == null) {
+            mergedFontSubset = createMergedFontSubset();
+        }
+        return mergedFontSubset;
+    }
+
+    private byte[] createMergedFontSubset() throws IOException {
         ByteArrayOutputStream boasHeader = writeHeader(pfbData, encoding);
 
         ByteArrayOutputStream boasMain = writeMainSection(decoded, mainSection, charStrings);
@@ -139,15 +198,22 @@ public class MergeType1Fonts extends Type1SubsetFile implements MergeFonts {
 
     @Override
     protected List<String> searchEntries(HashMap<Integer, String> encodingEntries, int glyph) {
-        List<String> matches = new ArrayList<String>();
-        for (Map.Entry<Integer, String> entry : encodingEntries.entrySet()) {
-            String tag = getEntryPart(entry.getValue(), 3);
-            String name = "/" + nameMap.get(glyph);
-            if (name.equals(tag)) {
-                matches.add(entry.getValue());
+        if (encodingEntries != indexedEntries) {
+            //index the entries by glyph name, keeping their order
+            encodingIndex = new HashMap<String, List<String>>();
+            for (Map.Entry<Integer, String> entry : encodingEntries.entrySet()) {
+                String tag = getEntryPart(entry.getValue(), 3);
+                List<String> entries = encodingIndex.get(tag);
+                if (entries == null) {
+                    entries = new ArrayList<String>(1);
+                    encodingIndex.put(tag, entries);
+                }
+                entries.add(entry.getValue());
             }
+            indexedEntries = encodingEntries;
         }
-        return matches;
+        List<String> matches = encodingIndex.get("/" + nameMap.get(glyph));
+        return matches == null ? new ArrayList<String>() : new ArrayList<String>(matches);
     }
 
     protected List<String> readEncoding(List<Integer> glyphs,
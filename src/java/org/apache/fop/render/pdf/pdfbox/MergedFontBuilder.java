@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.fonts.Typeface;
+
+/**
+ * Builds the programs of the merged fonts of a document concurrently. Call this once the last page
+ * is rendered and before the document is finished, FOP then embeds the fonts built here instead of
+ * building them one after the other.
+ */
+public final class MergedFontBuilder {
+
+    private MergedFontBuilder() {
+    }
+
+    /**
+     * Builds the programs of all merged fonts used by a document.
+     * @param fontInfo the fonts of the document
+     * @param threads the number of threads to use, 1 or less builds the fonts in the calling thread
+     * @throws IOException if a font can't be built
+     */
+    public static void buildAll(FontInfo fontInfo, int threads) throws IOException {
+        List<FOPPDFFont> fonts = new ArrayList<FOPPDFFont>();
+        for (Typeface font : fontInfo.getUsedFonts().values()) {
+            if (font instanceof FOPPDFFont) {
+                fonts.add((FOPPDFFont) font);
+            }
+        }
+        if (threads <= 1 || fonts.size() <= 1) {
+            for (FOPPDFFont font : fonts) {
+                font.buildMergedFont();
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, fonts.size()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final FOPPDFFont font : fonts) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        font.buildMergedFont();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building the merged fonts");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Could not build the merged fonts", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * A digest of everything read into a merged font, in order, which identifies its font program
+ * across renders.
+ */
+final class MergedFontKey {
+
+    private final MessageDigest digest;
+
+    MergedFontKey(String type) {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        update(type);
+    }
+
+    /**
+     * Adds a source font read into the merged font.
+     * @param fontFile the font program
+     * @param name the name passed along with the font, may be null
+     * @param font the source font, may be null
+     * @param subsetGlyphs the glyphs passed along with the font, may be null
+     */
+    void update(ByteBuffer fontFile, String name, FontContainer font, Map<Integer, Integer> subsetGlyphs) {
+        update(fontFile.remaining());
+        digest.update(fontFile.duplicate());
+        update(name);
+        if (font != null) {
+            update(font.getFirstChar());
+            update(font.getLastChar());
+        }
+        if (subsetGlyphs != null) {
+            update(subsetGlyphs.size());
+            for (Map.Entry<Integer, Integer> glyph : subsetGlyphs.entrySet()) {
+                update(glyph.getKey());
+                update(glyph.getValue());
+            }
+        }
+    }
+
+    private void update(String s) {
+        if (s == null) {
+            update(-1);
+        } else {
+            try {
+                byte[] bytes = s.getBytes("UTF-8");
+                update(bytes.length);
+                digest.update(bytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void update(int i) {
+        digest.update((byte) (i >>> 24));
+        digest.update((byte) (i >>> 16));
+        digest.update((byte) (i >>> 8));
+        digest.update((byte) i);
+    }
+
+    /**
+     * Returns the key of the fonts read so far.
+     * @return the hex encoded digest
+     */
+    String getKey() {
+        byte[] bytes;
+        try {
+            bytes = ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : bytes) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares the built programs of merged fonts between renders. A merged font read from the same
+ * sequence of source fonts gets the program built by an earlier render instead of building it
+ * again. The registry is off by default, fonts created while it is off don't use it.
+ */
+public final class MergedFontRegistry {
+
+    /** the default number of font programs kept */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static final MergedFontRegistry INSTANCE = new MergedFontRegistry();
+
+    private volatile boolean enabled;
+    private int capacity = DEFAULT_CAPACITY;
+    private final Map<String, byte[]> programs = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > capacity;
+        }
+    };
+    private int hits;
+    private int misses;
+
+    private MergedFontRegistry() {
+    }
+
+    public static MergedFontRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the registry on or off for the merged fonts created from now on.
+     * @param enabled true to share the font programs
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Sets the number of font programs kept, dropping the least recently used ones first.
+     * @param capacity the number of font programs
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Drops all font programs.
+     */
+    public synchronized void clear() {
+        programs.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the program of a merged font, building it only if the registry doesn't have it.
+     * @param key the sources of the font or null if the font doesn't use the registry
+     * @param mergeFonts the merged font
+     * @return the font program
+     * @throws IOException if the font can't be built
+     */
+    byte[] getMergedFontSubset(MergedFontKey key, MergeFonts mergeFonts) throws IOException {
+        if (key == null) {
+            return mergeFonts.getMergedFontSubset();
+        }
+        String name = key.getKey();
+        synchronized (this) {
+            byte[] program = programs.get(name);
+            if (program != null) {
+                hits++;
+                return program;
+            }
+            misses++;
+        }
+        byte[] program = mergeFonts.getMergedFontSubset();
+        synchronized (this) {
+            programs.put(name, program);
+        }
+        return program;
+    }
+}
@@ -33,6 +33,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -83,6 +84,14 @@ public class PDFBoxAdapter {
     protected static final Set<String> FILTER_FILTER = Collections.unmodifiableSet(
             new HashSet<String>(Arrays.asList("Filter", "DecodeParms")));
 
+    /** the renderer option, a Boolean or "true", making imported text share the fonts embedded by FOP */
+    public static final String DOCUMENT_FONTS_SHARED = "pdf-document-fonts-shared";
+
+    /** the renderer option, a {@link FontMergePolicy}, deciding which fonts are merged */
+    public static final String FONT_MERGE_POLICY = "pdf-font-merge-policy";
+
+    private static final String PAGE_TREE_KEY = PDFBoxAdapter.class.getName() + " page tree";
+
     private final PDFPage targetPage;
     protected final PDFDocument pdfDoc;
 
@@ -90,10 +99,14 @@ public class PDFBoxAdapter {
     protected final Map<Object, Object> objectCache;
     private Map<COSName, String> newXObj = new HashMap<COSName, String>();
     private Map<Integer, PDFArray> pageNumbers;
-    private Collection<String> parentFonts = new ArrayList<String>();
+    private Map<COSBase, Integer> sourcePageIndexes;
+    private Collection<String> parentFonts = new HashSet<String>();
 
     protected int currentMCID;
     protected UniqueName uniqueName;
+    private boolean documentFontsShared;
+    private FontMergePolicy fontMergePolicy = FontMergePolicy.ALWAYS;
+    private PDDocument sourceDoc;
 
     /**
      * Creates a new PDFBoxAdapter.
@@ -127,6 +140,32 @@ public class PDFBoxAdapter {
         this.currentMCID = currentMCID;
     }
 
+    /**
+     * Makes imported TrueType CID fonts use the same font already embedded by FOP for the
+     * document, if there is one, instead of a merged font. This only applies when fonts are merged
+     * and the page content isn't written as a form, and is off by default.
+     * @param documentFontsShared true to share the fonts embedded by FOP
+     */
+    public void setDocumentFontsShared(boolean documentFontsShared) {
+        this.documentFontsShared = documentFontsShared;
+    }
+
+    public boolean isDocumentFontsShared() {
+        return documentFontsShared;
+    }
+
+    /**
+     * Sets the policy deciding which fonts are merged when fonts are merged, by default all fonts are.
+     * @param fontMergePolicy the policy
+     */
+    public void setFontMergePolicy(FontMergePolicy fontMergePolicy) {
+        this.fontMergePolicy = fontMergePolicy;
+    }
+
+    public FontMergePolicy getFontMergePolicy() {
+        return fontMergePolicy;
+    }
+
     protected Object getCachedClone(Object base) throws IOException {
         Object key = PDFBoxAdapterUtil.getBaseKey(base);
         Object o = clonedVersion.get(key);
@@ -180,35 +219,50 @@ public class PDFBoxAdapter {
     public Object createStreamFromPDFBoxPage(PDDocument sourceDoc, PDPage page, String key,
                                                      AffineTransform atdoc, FontInfo fontinfo, Rectangle pos)
         throws IOException {
+        this.sourceDoc = sourceDoc;
         COSDictionary sourcePageResources = getResources(page);
-        uniqueName = new UniqueName(key, sourcePageResources, pdfDoc.isFormXObjectEnabled());
+        uniqueName = getUniqueName(key, sourcePageResources);
         handleAnnotations(sourceDoc, page, atdoc);
-        if (pageNumbers.containsKey(targetPage.getPageIndex())) {
-            pageNumbers.get(targetPage.getPageIndex()).set(0, targetPage.makeReference());
+        PDFArray pageReference = pageNumbers.get(targetPage.getPageIndex());
+        if (pageReference == null) {
+            //only gets registered once a link destination refers to it
+            pageReference = new PDFArray();
+            pageReference.add(null);
+            pageNumbers.put(targetPage.getPageIndex(), pageReference);
+        }
+        if (targetPage.hasObjectNumber()) {
+            pageReference.set(0, targetPage.makeReference());
         }
         PDStream pdStream = getContents(page);
+        COSDictionary usedResources = sourcePageResources;
+        if (!pdfDoc.isMergeFontsEnabled()) {
+            usedResources = UsedResourcesFinder.getUsedResources(sourcePageResources, pdStream, clonedVersion);
+        }
 
         COSDictionary fonts = (COSDictionary)sourcePageResources.getDictionaryObject(COSName.FONT);
         COSDictionary fontsBackup = null;
         String newStream = null;
         if (fonts != null && pdfDoc.isMergeFontsEnabled()) {
             fontsBackup = new COSDictionary(fonts);
-            MergeFontsPDFWriter m = new MergeFontsPDFWriter(fonts, fontinfo, uniqueName, parentFonts, currentMCID);
+            MergeFontsPDFWriter m = createMergeFontsPDFWriter(fonts, fontinfo, currentMCID);
+            //the fonts of the document are only in the resources of the target page
+            m.setUseDocumentFonts(documentFontsShared && !pdfDoc.isFormXObjectEnabled());
             newStream = m.writeText(pdStream);
         }
-        if (!pdfDoc.isFormXObjectEnabled()) {
+        if (!pdfDoc.isFormXObjectEnabled() && newStream == null) {
+            newStream = (String) clonedVersion.get(key);
             if (newStream == null) {
-                newStream = (String) clonedVersion.get(key);
-                if (newStream == null) {
-                    PDFWriter writer = new PDFWriter(uniqueName, currentMCID);
-                    newStream = writer.writeText(pdStream);
-                    clonedVersion.put(key, newStream);
-                }
+                PDFWriter writer = new PDFWriter(uniqueName, currentMCID);
+                newStream = writer.writeText(pdStream);
+                clonedVersion.put(key, newStream);
             }
+        }
+        if (newStream != null) {
+            //a form gets the original content unless fonts were merged
             pdStream = new PDStream(sourceDoc, new ByteArrayInputStream(newStream.getBytes("ISO-8859-1")));
         }
         mergeXObj(sourcePageResources, fontinfo, uniqueName);
-        PDFDictionary pageResources = (PDFDictionary)cloneForNewDocument(sourcePageResources);
+        PDFDictionary pageResources = cloneResources(usedResources);
 
         updateMergeFontInfo(pageResources, fontinfo);
         updateXObj(sourcePageResources, pageResources);
@@ -245,7 +299,10 @@ public class PDFBoxAdapter {
             transferDict(originalPageContents, pageStream, filter);
         }
 
-        transferPageDict(fonts, uniqueName, sourcePageResources);
+        if (usedResources != sourcePageResources) {
+            fonts = (COSDictionary) usedResources.getDictionaryObject(COSName.FONT);
+        }
+        transferPageDict(fonts, uniqueName, usedResources, sourcePageResources, getResourcesKey(page));
 
         PDRectangle mediaBox = page.getMediaBox();
         PDRectangle cropBox = page.getCropBox();
@@ -278,6 +335,14 @@ public class PDFBoxAdapter {
         return boxStr.toString() + IOUtils.toString(pdStream.createInputStream(), "ISO-8859-1");
     }
 
+    protected UniqueName getUniqueName(String key, COSDictionary sourcePageResources) {
+        return new UniqueName(key, sourcePageResources, pdfDoc.isFormXObjectEnabled());
+    }
+
+    protected PDFDictionary cloneResources(COSDictionary sourcePageResources) throws IOException {
+        return (PDFDictionary) cloneForNewDocument(sourcePageResources);
+    }
+
     private PDStream getContents(PDPage page) throws IOException {
         PDStream pdStream = new PDStream(new COSStream());
         OutputStream os = pdStream.createOutputStream();
@@ -305,9 +370,6 @@ public class PDFBoxAdapter {
 
     private PDFFormXObject getFormXObject(PDFDictionary pageResources, PDFStream pageStream, String key, PDPage page)
         throws IOException {
-        if (pdfDoc.isMergeFontsEnabled()) {
-            throw new RuntimeException("merge-fonts and form-xobject can't both be enabled");
-        }
         if (!pageResources.hasObjectNumber()) {
             pdfDoc.registerObject(pageResources);
         }
@@ -362,6 +424,18 @@ public class PDFBoxAdapter {
         return res.getCOSObject();
     }
 
+    private MergeFontsPDFWriter createMergeFontsPDFWriter(COSDictionary fonts, FontInfo fontinfo, int mcid) {
+        FontContainerCache fontCache = FontContainerCache.getInstance(clonedVersion);
+        MergeFontsPDFWriter writer = new MergeFontsPDFWriter(fonts, fontinfo, uniqueName, parentFonts, mcid,
+                fontCache);
+        if (fontMergePolicy != FontMergePolicy.ALWAYS) {
+            //the fonts are counted once per source document, when the policy is first used for it
+            writer.setFontMergePolicy(fontMergePolicy,
+                    SourceFontCopies.getInstance(clonedVersion, sourceDoc, fontCache));
+        }
+        return writer;
+    }
+
     private void mergeXObj(COSDictionary sourcePageResources, FontInfo fontinfo, UniqueName uniqueName)
         throws IOException {
         COSDictionary xobj = (COSDictionary) sourcePageResources.getDictionaryObject(COSName.XOBJECT);
@@ -383,7 +457,7 @@ public class PDFBoxAdapter {
                                 }
                             }
                         }
-                        PDFWriter writer = new MergeFontsPDFWriter(src, fontinfo, uniqueName, parentFonts, 0);
+                        PDFWriter writer = createMergeFontsPDFWriter(src, fontinfo, 0);
                         String c = writer.writeText(new PDStream(stream));
                         if (c != null) {
                             stream.removeItem(COSName.FILTER);
@@ -415,20 +489,22 @@ public class PDFBoxAdapter {
         }
     }
 
-    private void transferPageDict(COSDictionary fonts, UniqueName uniqueName, COSDictionary sourcePageResources)
-        throws IOException {
+    private void transferPageDict(COSDictionary fonts, UniqueName uniqueName, COSDictionary usedResources,
+                                  COSDictionary sourcePageResources, String resourcesKey) throws IOException {
         if (fonts != null) {
             for (Map.Entry<COSName, COSBase> f : fonts.entrySet()) {
                 String name = uniqueName.getName(f.getKey());
                 targetPage.getPDFResources().addFont(name, (PDFDictionary)cloneForNewDocument(f.getValue()));
             }
         }
-        for (Map.Entry<COSName, COSBase> e : sourcePageResources.entrySet()) {
-            transferDict(e, uniqueName);
+        for (Map.Entry<COSName, COSBase> e : usedResources.entrySet()) {
+            boolean pruned = sourcePageResources.getItem(e.getKey()) != e.getValue();
+            transferDict(e, uniqueName, resourcesKey, pruned);
         }
     }
 
-    private void transferDict(Map.Entry<COSName, COSBase> dict, UniqueName uniqueName) throws IOException {
+    private void transferDict(Map.Entry<COSName, COSBase> dict, UniqueName uniqueName, String resourcesKey,
+                              boolean pruned) throws IOException {
         COSBase src;
         if (dict.getValue() instanceof COSObject) {
             src = ((COSObject) dict.getValue()).getObject();
@@ -438,10 +514,18 @@ public class PDFBoxAdapter {
         if (dict.getKey() != COSName.FONT && src instanceof COSDictionary) {
             String name = dict.getKey().getName();
             PDFDictionary newDict = (PDFDictionary) targetPage.getPDFResources().get(name);
+            COSDictionary srcDict = (COSDictionary) src;
+            if (newDict == null && !pdfDoc.isMergeFontsEnabled()) {
+                PDFDictionary shared = getSharedDict(dict.getValue(), srcDict, resourcesKey, name, uniqueName,
+                        pruned);
+                if (shared != null) {
+                    targetPage.getPDFResources().put(name, new SharedResourcesDictionary(shared));
+                    return;
+                }
+            }
             if (newDict == null) {
                 newDict = new PDFDictionary(targetPage.getPDFResources());
             }
-            COSDictionary srcDict = (COSDictionary) src;
             for (Map.Entry<COSName, COSBase> v : srcDict.entrySet()) {
                 newDict.put(uniqueName.getName(v.getKey()), cloneForNewDocument(v.getValue()));
             }
@@ -449,6 +533,52 @@ public class PDFBoxAdapter {
         }
     }
 
+    /**
+     * Returns the clone of a resource subdictionary which is shared by several source pages, that is
+     * either an indirect object itself or an entry of an indirect resources dictionary, or a pruned
+     * copy, which is the same for all pages using the same entries of the same resources. The clone
+     * is registered once and referenced by all target pages.
+     */
+    private PDFDictionary getSharedDict(COSBase base, COSDictionary srcDict, String resourcesKey, String name,
+                                        UniqueName uniqueName, boolean pruned) throws IOException {
+        Object key;
+        if (pruned) {
+            key = srcDict;
+        } else if (base instanceof COSObject) {
+            COSObject obj = (COSObject) base;
+            key = obj.getObjectNumber() + " " + obj.getGenerationNumber() + " shared";
+        } else if (resourcesKey != null) {
+            key = resourcesKey + " " + name;
+        } else {
+            return null;
+        }
+        PDFDictionary shared = (PDFDictionary) clonedVersion.get(key);
+        if (shared == null) {
+            shared = new PDFDictionary();
+            for (Map.Entry<COSName, COSBase> v : srcDict.entrySet()) {
+                shared.put(uniqueName.getName(v.getKey()), cloneForNewDocument(v.getValue()));
+            }
+            pdfDoc.registerObject(shared);
+            clonedVersion.put(key, shared);
+        }
+        return shared;
+    }
+
+    private static String getResourcesKey(PDPage page) {
+        COSDictionary node = page.getCOSObject();
+        while (node != null) {
+            COSBase resources = node.getItem(COSName.RESOURCES);
+            if (resources instanceof COSObject) {
+                COSObject obj = (COSObject) resources;
+                return obj.getObjectNumber() + " " + obj.getGenerationNumber();
+            } else if (resources != null) {
+                return null;
+            }
+            node = (COSDictionary) node.getDictionaryObject(COSName.PARENT, COSName.P);
+        }
+        return null;
+    }
+
     private void bindOptionalContent(PDDocument sourceDoc) throws IOException {
         /*
          * PDOptionalContentProperties ocProperties =
@@ -468,32 +598,38 @@ public class PDFBoxAdapter {
 
         PDFBoxAdapterUtil.moveAnnotations(page, pageAnnotations, at);
 
-        //Pseudo-cache the target page in place of the original source page.
-        //This essentially replaces the original page reference with the target page.
-        COSObject cosPage = null;
+        //The sibling pages are replaced by placeholders for the target pages. These are only
+        //created when a link destination or similar actually refers to them, see getPageReference.
         COSDictionary parentDic = (COSDictionary) page.getCOSObject().getDictionaryObject(COSName.PARENT, COSName.P);
         COSArray kids = (COSArray) parentDic.getDictionaryObject(COSName.KIDS);
-        for (int i = 0; i < kids.size(); i++) {
-            //Hopefully safe to cast, as kids need to be indirect objects
-            COSObject kid = (COSObject) kids.get(i);
-            if (!pageNumbers.containsKey(i)) {
-                PDFArray a = new PDFArray();
-                a.add(null);
-                pdfDoc.assignObjectNumber(a);
-                pdfDoc.addTrailerObject(a);
-                pageNumbers.put(i, a);
-            }
-            cacheClonedObject(kid, pageNumbers.get(i));
-            if (kid.getObject() == page.getCOSObject()) {
-                cosPage = kid;
-            }
-        }
-        if (cosPage == null) {
+        Map<COSBase, Integer> indexes = getKidIndexes(kids);
+        if (!indexes.containsKey(page.getCOSObject())) {
             throw new IOException("Illegal PDF. Page not part of parent page node.");
         }
+        sourcePageIndexes = indexes;
 
         Set<COSObject> fields = copyAnnotations(page, srcAcroForm);
 
+        PDFDictionary destAcroForm = getDestAcroForm(srcAcroForm);
+        PDFArray clonedFields = (PDFArray) destAcroForm.get(COSName.FIELDS.getName());
+        if (clonedFields == null) {
+            clonedFields = new PDFArray();
+            destAcroForm.put(COSName.FIELDS.getName(), clonedFields);
+        }
+        for (COSObject field : fields) {
+            PDFDictionary clone = (PDFDictionary) cloneForNewDocument(field, field, Arrays.asList(COSName.KIDS));
+            clonedFields.add(clone);
+        }
+    }
+
+    /**
+     * Returns the AcroForm of the target document the fields of the source page are added to. The
+     * first time the properties of the source AcroForm are copied, but not its fields.
+     * @param srcAcroForm the AcroForm of the source document, may be null
+     * @return the AcroForm of the target document
+     * @throws IOException if an I/O error occurs
+     */
+    protected PDFDictionary getDestAcroForm(PDAcroForm srcAcroForm) throws IOException {
         boolean formAlreadyCopied = getCachedClone(srcAcroForm) != null;
         PDFRoot catalog = this.pdfDoc.getRoot();
         PDFDictionary destAcroForm = (PDFDictionary)catalog.get(COSName.ACRO_FORM.getName());
@@ -517,15 +653,76 @@ public class PDFBoxAdapter {
             pdfDoc.addTrailerObject(destAcroForm);
             catalog.put(COSName.ACRO_FORM.getName(), destAcroForm);
         }
-        PDFArray clonedFields = (PDFArray) destAcroForm.get(COSName.FIELDS.getName());
-        if (clonedFields == null) {
-            clonedFields = new PDFArray();
-            destAcroForm.put(COSName.FIELDS.getName(), clonedFields);
-        }
-        for (COSObject field : fields) {
-            PDFDictionary clone = (PDFDictionary) cloneForNewDocument(field, field, Arrays.asList(COSName.KIDS));
-            clonedFields.add(clone);
+        return destAcroForm;
+    }
+
+    /**
+     * Returns the fields listed by the source AcroForm, which are compared by identity.
+     * @param srcAcroForm the AcroForm of the source document
+     * @return the fields
+     */
+    protected Set<COSBase> getSourceFields(PDAcroForm srcAcroForm) {
+        Set<COSBase> fields = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        COSArray srcFields = (COSArray) srcAcroForm.getCOSObject().getDictionaryObject(COSName.FIELDS);
+        fields.addAll(srcFields.toList());
+        return fields;
+    }
+
+    /**
+     * Returns the index of each kid of a page tree node. The index is built once per node and kept
+     * in the object cache of the source document, the kids being compared by identity.
+     * @param kids the kids of the page tree node
+     * @return the indexes by kid
+     */
+    private Map<COSBase, Integer> getKidIndexes(COSArray kids) {
+        Map<COSArray, Map<COSBase, Integer>> pageTree = (Map<COSArray, Map<COSBase, Integer>>)
+                clonedVersion.get(PAGE_TREE_KEY);
+        if (pageTree == null) {
+            pageTree = new IdentityHashMap<COSArray, Map<COSBase, Integer>>();
+            clonedVersion.put(PAGE_TREE_KEY, pageTree);
+        }
+        Map<COSBase, Integer> indexes = pageTree.get(kids);
+        if (indexes == null) {
+            indexes = new IdentityHashMap<COSBase, Integer>();
+            //backwards, so a kid listed twice gets its first index
+            for (int i = kids.size() - 1; i >= 0; i--) {
+                //Hopefully safe to cast, as kids need to be indirect objects
+                COSObject kid = (COSObject) kids.get(i);
+                indexes.put(kid.getObject(), i);
+            }
+            pageTree.put(kids, indexes);
         }
+        return indexes;
+    }
+
+    /**
+     * Returns the placeholder standing in for a sibling of the imported source page, pseudo-caching
+     * the target page in place of the original page. The placeholder is registered on first use.
+     * @param base the object about to be cloned
+     * @return the placeholder or null if the object isn't a sibling page
+     * @throws IOException if an I/O error occurs
+     */
+    protected PDFArray getPageReference(COSObject base) throws IOException {
+        if (sourcePageIndexes == null || !(base.getObject() instanceof COSDictionary)
+                || ((COSDictionary) base.getObject()).getItem(COSName.TYPE) != COSName.PAGE) {
+            return null;
+        }
+        Integer i = sourcePageIndexes.get(base.getObject());
+        if (i == null) {
+            return null;
+        }
+        PDFArray a = pageNumbers.get(i);
+        if (a == null) {
+            a = new PDFArray();
+            a.add(null);
+            pageNumbers.put(i, a);
+        }
+        if (!a.hasObjectNumber()) {
+            pdfDoc.assignObjectNumber(a);
+            pdfDoc.addTrailerObject(a);
+        }
+        cacheClonedObject(base, a);
+        return a;
     }
 
     private Set<COSObject> copyAnnotations(PDPage page, PDAcroForm srcAcroForm) throws IOException {
@@ -533,12 +730,13 @@ public class PDFBoxAdapter {
         Set<COSObject> fields = Collections.emptySet();
         if (annots != null) {
             fields = new TreeSet<COSObject>(new CompareFields());
+            Set<COSBase> srcFields = srcAcroForm != null ? getSourceFields(srcAcroForm) : null;
             for (Object annot1 : annots) {
                 Collection<COSName> exclude = new ArrayList<COSName>();
                 exclude.add(COSName.P);
                 if (annot1 instanceof COSObject) {
                     COSObject annot = (COSObject) annot1;
-                    getField(annot, fields, srcAcroForm);
+                    getField(annot, fields, srcFields);
                     if (((COSDictionary) annot.getObject()).getItem(COSName.STRUCT_PARENT) != null) {
                         exclude.add(COSName.PARENT);
                     }
@@ -567,16 +765,15 @@ public class PDFBoxAdapter {
         }
     }
 
-    private COSDictionary getField(COSObject fieldObject, Set<COSObject> fields, PDAcroForm srcAcroForm) {
+    private COSDictionary getField(COSObject fieldObject, Set<COSObject> fields, Set<COSBase> srcFields) {
         COSDictionary field = (COSDictionary) fieldObject.getObject();
         COSObject parent;
         while ((parent = getParent(field)) != null) {
             fieldObject = parent;
             field = (COSDictionary) fieldObject.getObject();
         }
-        if (srcAcroForm != null) {
-            COSArray srcFields = (COSArray) srcAcroForm.getCOSObject().getDictionaryObject(COSName.FIELDS);
-            if (srcFields.toList().contains(fieldObject)) {
+        if (srcFields != null) {
+            if (srcFields.contains(fieldObject)) {
                 fields.add(fieldObject);
             }
         } else {
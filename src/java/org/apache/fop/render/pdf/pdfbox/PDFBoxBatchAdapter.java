@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDictionary;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFStructElem;
+import org.apache.fop.render.pdf.PDFLogicalStructureHandler;
+
+/**
+ * Imports several pages of one source document into consecutive target pages. The per-document
+ * setup is only done once and resources dictionaries shared by several source pages are only
+ * resolved and cloned once.
+ */
+public class PDFBoxBatchAdapter {
+
+    private final PDDocument sourceDoc;
+    private final String uri;
+    private final FOUserAgent userAgent;
+    private final Map<Integer, PDFArray> pageNumbers;
+    private final Map<Object, Object> objectCachePerFile;
+    private final Map<Object, Object> objectCache;
+
+    private final Map<COSDictionary, UniqueName> uniqueNames = new IdentityHashMap<COSDictionary, UniqueName>();
+    private final Map<COSDictionary, PDFDictionary> clonedResources =
+            new IdentityHashMap<COSDictionary, PDFDictionary>();
+    private PDFDocument checkedDoc;
+    private boolean importable;
+    private PDFDictionary destAcroForm;
+    private Set<COSBase> sourceFields;
+
+    /**
+     * Creates a new PDFBoxBatchAdapter.
+     * @param sourceDoc the source PDF the pages to be copied belong to
+     * @param uri the URI of the source PDF, without page fragment
+     * @param userAgent the user agent
+     * @param pageNumbers references to page object numbers
+     */
+    public PDFBoxBatchAdapter(PDDocument sourceDoc, String uri, FOUserAgent userAgent,
+                              Map<Integer, PDFArray> pageNumbers) {
+        this.sourceDoc = sourceDoc;
+        this.uri = AbstractPDFBoxHandler.getImagePath(uri);
+        this.userAgent = userAgent;
+        this.pageNumbers = pageNumbers;
+        objectCachePerFile = AbstractPDFBoxHandler.getObjectCache(this.uri, userAgent);
+        objectCache = AbstractPDFBoxHandler.getObjectCache(PDFBoxImageHandler.class.getName(), userAgent);
+    }
+
+    /**
+     * Creates streams for the pages [first..last] of the source document. The logical structure of
+     * the source document isn't merged, as that needs the structure handler to be at each target
+     * page in turn. With accessibility enabled, the pages need to be imported one by one with
+     * {@link #createStreamFromPDFBoxPage(int, PDFPage, AffineTransform, FontInfo, Rectangle,
+     * PDFLogicalStructureHandler, PDFStructElem)}.
+     * @param first index of the first source page
+     * @param last index of the last source page, inclusive
+     * @param targetPages the target pages, one per source page
+     * @param transforms the adjustments for the streams, one per source page
+     * @param fontinfo fonts
+     * @param positions the rectangles, one per source page
+     * @return the streams, null entries if the source document can't be imported
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if accessibility is enabled
+     */
+    public List<Object> createStreamsFromPDFBoxPages(int first, int last, List<PDFPage> targetPages,
+                                                     List<AffineTransform> transforms, FontInfo fontinfo,
+                                                     List<Rectangle> positions) throws IOException {
+        int count = last - first + 1;
+        if (first < 0 || last >= sourceDoc.getNumberOfPages() || count <= 0) {
+            throw new IllegalArgumentException("Invalid page range: " + first + ".." + last);
+        }
+        if (targetPages.size() != count || transforms.size() != count || positions.size() != count) {
+            throw new IllegalArgumentException("Expected " + count + " target pages, transforms and positions");
+        }
+        if (userAgent.isAccessibilityEnabled()) {
+            throw new IllegalStateException("Tagged pages need to be imported one by one");
+        }
+        List<Object> streams = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            streams.add(createStreamFromPDFBoxPage(first + i, targetPages.get(i), transforms.get(i), fontinfo,
+                    positions.get(i), null, null));
+        }
+        return streams;
+    }
+
+    /**
+     * Creates a stream for one page of the source document.
+     * @param pageIndex index of the source page
+     * @param targetPage the target page
+     * @param at adjustment for stream
+     * @param fontinfo fonts
+     * @param pos rectangle
+     * @param handler the logical structure handler, may be null
+     * @param currentSessionElem the current structure element, may be null
+     * @return the stream or null if the source document can't be imported
+     * @throws IOException if an I/O error occurs
+     */
+    public Object createStreamFromPDFBoxPage(int pageIndex, PDFPage targetPage, AffineTransform at,
+                                             FontInfo fontinfo, Rectangle pos, PDFLogicalStructureHandler handler,
+                                             PDFStructElem currentSessionElem) throws IOException {
+        PDFDocument pdfDoc = targetPage.getDocument();
+        if (pdfDoc != checkedDoc) {
+            importable = AbstractPDFBoxHandler.checkSourceDocument(this, sourceDoc, pdfDoc,
+                    userAgent.getEventBroadcaster());
+            checkedDoc = pdfDoc;
+            uniqueNames.clear();
+            clonedResources.clear();
+            destAcroForm = null;
+            sourceFields = null;
+        }
+        if (!importable) {
+            return null;
+        }
+        AbstractPDFBoxHandler.setParentResources(targetPage);
+
+        PDPage page = sourceDoc.getPage(pageIndex);
+        PDFBoxAdapter adapter = createAdapter(targetPage);
+        AbstractPDFBoxHandler.configureAdapter(adapter, userAgent);
+        if (handler != null) {
+            adapter.setCurrentMCID(handler.getPageParentTree().length());
+        }
+        String key = uri + "#page=" + (pageIndex + 1);
+        Object stream = adapter.createStreamFromPDFBoxPage(sourceDoc, page, key, at, fontinfo, pos);
+        if (userAgent.isAccessibilityEnabled() && currentSessionElem != null) {
+            TaggedPDFConductor conductor = new TaggedPDFConductor(currentSessionElem, handler, page, adapter);
+            conductor.handleLogicalStructure(sourceDoc);
+        }
+        return stream;
+    }
+
+    PDFBoxAdapter createAdapter(PDFPage targetPage) {
+        return new SharedResourcesAdapter(targetPage);
+    }
+
+    private class SharedResourcesAdapter extends PDFBoxAdapter {
+
+        SharedResourcesAdapter(PDFPage targetPage) {
+            super(targetPage, objectCachePerFile, pageNumbers, PDFBoxBatchAdapter.this.objectCache);
+        }
+
+        @Override
+        protected UniqueName getUniqueName(String key, COSDictionary sourcePageResources) {
+            //merging fonts modifies the source resources, so these can't be shared
+            if (pdfDoc.isMergeFontsEnabled()) {
+                return super.getUniqueName(key, sourcePageResources);
+            }
+            UniqueName name = uniqueNames.get(sourcePageResources);
+            if (name == null) {
+                name = super.getUniqueName(key, sourcePageResources);
+                uniqueNames.put(sourcePageResources, name);
+            }
+            return name;
+        }
+
+        @Override
+        protected PDFDictionary cloneResources(COSDictionary sourcePageResources) throws IOException {
+            if (pdfDoc.isMergeFontsEnabled()) {
+                return super.cloneResources(sourcePageResources);
+            }
+            PDFDictionary resources = clonedResources.get(sourcePageResources);
+            if (resources == null) {
+                resources = super.cloneResources(sourcePageResources);
+                clonedResources.put(sourcePageResources, resources);
+            }
+            return resources;
+        }
+
+        @Override
+        protected PDFDictionary getDestAcroForm(PDAcroForm srcAcroForm) throws IOException {
+            //the source AcroForm is only compared with the ones already copied for the first page
+            if (destAcroForm == null || pdfDoc.getRoot().get(COSName.ACRO_FORM.getName()) != destAcroForm) {
+                destAcroForm = super.getDestAcroForm(srcAcroForm);
+            }
+            return destAcroForm;
+        }
+
+        @Override
+        protected Set<COSBase> getSourceFields(PDAcroForm srcAcroForm) {
+            if (sourceFields == null) {
+                sourceFields = super.getSourceFields(srcAcroForm);
+            }
+            return sourceFields;
+        }
+    }
+}
@@ -129,6 +129,10 @@ public class PDFCloner {
     }
 
     protected Object readCOSObject(COSObject object, Collection exclude) throws IOException {
+        PDFArray pageReference = adapter.getPageReference(object);
+        if (pageReference != null) {
+            return pageReference;
+        }
         Object obj = cloneForNewDocument(object.getObject(), object, exclude);
         if (obj instanceof PDFObject) {
             PDFObject pdfobj = (PDFObject)obj;
@@ -55,9 +55,16 @@ public class PDFWriter {
     }
 
     public String writeText(PDStream pdStream) throws IOException {
+        return writeText(getTokens(pdStream));
+    }
+
+    protected static List<Object> getTokens(PDStream pdStream) throws IOException {
         PDFStreamParser pdfStreamParser = new PDFStreamParser(pdStream);
         pdfStreamParser.parse();
-        List<Object> it = pdfStreamParser.getTokens();
+        return pdfStreamParser.getTokens();
+    }
+
+    protected String writeText(List<Object> it) throws IOException {
         List<COSBase> arguments = new ArrayList<COSBase>();
         for (Object o : it) {
             if (o instanceof Operator) {
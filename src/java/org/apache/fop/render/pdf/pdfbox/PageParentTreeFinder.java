@@ -18,15 +18,11 @@
 package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
 
 import org.apache.pdfbox.cos.COSArray;
-import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
-import org.apache.pdfbox.cos.COSInteger;
 import org.apache.pdfbox.cos.COSName;
-import org.apache.pdfbox.cos.COSObject;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -36,10 +32,22 @@ import org.apache.pdfbox.pdmodel.graphics.PDXObject;
 public class PageParentTreeFinder {
 
     private PDPage srcPage;
+    private Map<Object, Object> objectCachePerFile;
+
     public PageParentTreeFinder(PDPage srcPage) {
         this.srcPage = srcPage;
     }
 
+    /**
+     * Creates a finder sharing the index of the parent tree with the other pages of the source document.
+     * @param srcPage the source page
+     * @param objectCachePerFile the object cache of the source document
+     */
+    public PageParentTreeFinder(PDPage srcPage, Map<Object, Object> objectCachePerFile) {
+        this.srcPage = srcPage;
+        this.objectCachePerFile = objectCachePerFile;
+    }
+
     public COSArray getPageParentTreeArray(PDDocument srcDoc) throws IOException {
         int position = srcPage.getCOSObject().getInt(COSName.STRUCT_PARENTS);
         if (position == -1) {
@@ -47,7 +55,8 @@ public class PageParentTreeFinder {
         }
         if (position != -1) {
             PDNumberTreeNode srcNumberTreeNode = srcDoc.getDocumentCatalog().getStructureTreeRoot().getParentTree();
-            return traverseParentTree(srcNumberTreeNode.getCOSObject(), position);
+            return ParentTreeIndex.getInstance(objectCachePerFile, srcNumberTreeNode.getCOSObject())
+                    .getParents(position);
         }
         return new COSArray();
     }
@@ -65,76 +74,4 @@ public class PageParentTreeFinder {
         }
         return position;
     }
-
-    private COSArray traverseParentTree(COSDictionary numberTreeNodeDict, int position) {
-        COSArray numberTree;
-        COSArray parentTree;
-        List<COSArray> nums = new ArrayList<COSArray>();
-        if (numberTreeNodeDict.containsKey(COSName.NUMS)) {
-            numberTree = (COSArray)numberTreeNodeDict.getItem(COSName.NUMS);
-            return extractMarkedContentParents(numberTree, position);
-        } else {
-            parentTree = (COSArray) numberTreeNodeDict.getDictionaryObject(COSName.KIDS);
-            traverseKids(parentTree, position, nums);
-        }
-        if (nums.isEmpty()) {
-            return new COSArray();
-        }
-        return nums.get(0);
-    }
-
-    private void traverseKids(COSBase kids, int position, List<COSArray> numList) {
-        if (!numList.isEmpty()) {
-            return;
-        }
-        if (kids instanceof COSArray) {
-            COSArray kidsArray = (COSArray)kids;
-            for (COSBase kid : kidsArray) {
-                COSObject kidCOSObj = (COSObject) kid;
-                traverseKids(kidCOSObj, position, numList);
-            }
-        } else if (kids instanceof COSObject) {
-            COSObject kidCOSObj = (COSObject) kids;
-            if (kidCOSObj.getDictionaryObject(COSName.NUMS) == null) {
-                traverseKids(kidCOSObj.getDictionaryObject(COSName.KIDS), position, numList);
-            } else {
-                if (kidCOSObj.getDictionaryObject(COSName.LIMITS) != null) {
-                    COSArray kidCOSArray = (COSArray) kidCOSObj.getDictionaryObject(COSName.LIMITS);
-                    int lowerLimit = ((COSInteger) kidCOSArray.get(0)).intValue();
-                    int upperLimit = ((COSInteger) kidCOSArray.get(1)).intValue();
-                    if (lowerLimit <= position && position <= upperLimit) {
-                        COSArray nums = (COSArray) kidCOSObj.getDictionaryObject(COSName.NUMS);
-                        numList.add(extractMarkedContentParents(nums, position));
-                    }
-                } else {
-                    COSArray nums = (COSArray) kidCOSObj.getDictionaryObject(COSName.NUMS);
-                    numList.add(extractMarkedContentParents(nums, position));
-                }
-            }
-        }
-    }
-
-    private COSArray extractMarkedContentParents(COSArray numberTree, int position) {
-        COSBase tempObject;
-        boolean keyFlag = false;
-        for (COSBase kid : numberTree) {
-            if (keyFlag) {
-                if (kid instanceof COSObject) {
-                    tempObject = ((COSObject)kid).getObject();
-                    if (tempObject instanceof COSArray) {
-                        return (COSArray) tempObject;
-                    }
-                } else if (kid instanceof COSArray) {
-                    return (COSArray)kid;
-                }
-            }
-            if (kid instanceof COSInteger) {
-                int temp = ((COSInteger)kid).intValue();
-                if (temp == position) {
-                    keyFlag = true;
-                }
-            }
-        }
-        return new COSArray();
-    }
 }
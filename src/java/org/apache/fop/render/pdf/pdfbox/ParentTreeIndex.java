@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+
+/**
+ * An index of the parent tree of a source document, from the StructParents keys of its pages to
+ * the arrays of marked content parents. It is built once per document. The leaves of the number
+ * tree are found by a binary search on their limits, and the Nums array of a leaf is only read
+ * when a key in it is first looked up.
+ */
+final class ParentTreeIndex {
+
+    private final COSDictionary parentTree;
+    private final List<Leaf> leaves = new ArrayList<Leaf>();
+    //whether all leaves have limits in ascending order which don't overlap
+    private boolean ordered = true;
+
+    private static final class Leaf {
+        final COSArray nums;
+        final int lower;
+        final int upper;
+        final boolean limited;
+        Map<Integer, COSArray> parents;
+
+        Leaf(COSArray nums, int lower, int upper, boolean limited) {
+            this.nums = nums;
+            this.lower = lower;
+            this.upper = upper;
+            this.limited = limited;
+        }
+
+        boolean contains(int key) {
+            return !limited || (lower <= key && key <= upper);
+        }
+
+        COSArray getParents(int key) {
+            if (parents == null) {
+                parents = readNums(nums);
+            }
+            COSArray result = parents.get(key);
+            return result != null ? result : new COSArray();
+        }
+    }
+
+    private ParentTreeIndex(COSDictionary parentTree) {
+        this.parentTree = parentTree;
+        readLeaves(parentTree, Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>()));
+    }
+
+    /**
+     * Returns the index of a parent tree, building it if necessary.
+     * @param objectCachePerFile the object cache of the source document, or null
+     * @param parentTree the parent tree
+     * @return the index
+     */
+    static ParentTreeIndex getInstance(Map<Object, Object> objectCachePerFile, COSDictionary parentTree) {
+        if (objectCachePerFile == null) {
+            return new ParentTreeIndex(parentTree);
+        }
+        String key = ParentTreeIndex.class.getName();
+        ParentTreeIndex index = (ParentTreeIndex) objectCachePerFile.get(key);
+        if (index == null || index.parentTree != parentTree) {
+            index = new ParentTreeIndex(parentTree);
+            objectCachePerFile.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the marked content parents of a key. As before, the first leaf whose limits contain
+     * the key, or which has no limits, is the one read.
+     * @param key the StructParents key
+     * @return the parents, or an empty array if the key isn't in the tree
+     */
+    COSArray getParents(int key) {
+        if (ordered) {
+            int low = 0;
+            int high = leaves.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                Leaf leaf = leaves.get(mid);
+                if (key < leaf.lower) {
+                    high = mid - 1;
+                } else if (key > leaf.upper) {
+                    low = mid + 1;
+                } else {
+                    return leaf.getParents(key);
+                }
+            }
+        } else {
+            for (Leaf leaf : leaves) {
+                if (leaf.contains(key)) {
+                    return leaf.getParents(key);
+                }
+            }
+        }
+        return new COSArray();
+    }
+
+    private void readLeaves(COSBase node, Set<COSBase> visited) {
+        if (node instanceof COSObject) {
+            node = ((COSObject) node).getObject();
+        }
+        if (!(node instanceof COSDictionary) || !visited.add(node)) {
+            return;
+        }
+        COSDictionary dict = (COSDictionary) node;
+        COSBase nums = dict.getDictionaryObject(COSName.NUMS);
+        if (nums instanceof COSArray) {
+            addLeaf((COSArray) nums, dict.getDictionaryObject(COSName.LIMITS), node == parentTree);
+        } else {
+            COSBase kids = dict.getDictionaryObject(COSName.KIDS);
+            if (kids instanceof COSArray) {
+                for (COSBase kid : (COSArray) kids) {
+                    readLeaves(kid, visited);
+                }
+            }
+        }
+    }
+
+    private void addLeaf(COSArray nums, COSBase limits, boolean root) {
+        Leaf leaf;
+        //the limits of the root node don't apply
+        if (!root && limits instanceof COSArray && ((COSArray) limits).size() == 2
+                && ((COSArray) limits).getObject(0) instanceof COSNumber
+                && ((COSArray) limits).getObject(1) instanceof COSNumber) {
+            leaf = new Leaf(nums, ((COSNumber) ((COSArray) limits).getObject(0)).intValue(),
+                    ((COSNumber) ((COSArray) limits).getObject(1)).intValue(), true);
+        } else {
+            leaf = new Leaf(nums, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+        }
+        if (!leaf.limited || leaf.lower > leaf.upper
+                || (!leaves.isEmpty() && leaves.get(leaves.size() - 1).upper >= leaf.lower)) {
+            ordered = false;
+        }
+        leaves.add(leaf);
+    }
+
+    /**
+     * Reads the pairs of a Nums array. A key gets the first array following it, so keys with a
+     * value which isn't an array share the next one.
+     */
+    private static Map<Integer, COSArray> readNums(COSArray nums) {
+        Map<Integer, COSArray> parents = new HashMap<Integer, COSArray>();
+        List<Integer> keys = new ArrayList<Integer>();
+        for (COSBase item : nums) {
+            COSBase value = item instanceof COSObject ? ((COSObject) item).getObject() : item;
+            if (item instanceof COSInteger) {
+                keys.add(((COSInteger) item).intValue());
+            } else if (value instanceof COSArray && !keys.isEmpty()) {
+                for (Integer key : keys) {
+                    if (!parents.containsKey(key)) {
+                        parents.put(key, (COSArray) value);
+                    }
+                }
+                keys.clear();
+            }
+        }
+        return parents;
+    }
+}
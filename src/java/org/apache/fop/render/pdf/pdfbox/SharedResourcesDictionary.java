@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+import org.apache.fop.pdf.PDFDictionary;
+
+/**
+ * A resource subdictionary of a target page standing in for a dictionary shared by several pages.
+ * It is written as a reference to the shared dictionary. Once entries get added or removed for
+ * this page only, the shared entries are copied and the dictionary is written in full.
+ */
+class SharedResourcesDictionary extends PDFDictionary {
+
+    private final PDFDictionary shared;
+    private boolean copied;
+
+    SharedResourcesDictionary(PDFDictionary shared) {
+        this.shared = shared;
+    }
+
+    private void copySharedEntries() {
+        if (!copied) {
+            copied = true;
+            for (String key : shared.keySet()) {
+                super.put(key, shared.get(key));
+            }
+        }
+    }
+
+    @Override
+    public void put(String name, Object value) {
+        copySharedEntries();
+        super.put(name, value);
+    }
+
+    @Override
+    public void put(String name, int value) {
+        copySharedEntries();
+        super.put(name, value);
+    }
+
+    @Override
+    public void remove(String name) {
+        copySharedEntries();
+        super.remove(name);
+    }
+
+    @Override
+    public Object get(String name) {
+        return copied ? super.get(name) : shared.get(name);
+    }
+
+    @Override
+    public boolean containsKey(String name) {
+        return copied ? super.containsKey(name) : shared.containsKey(name);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return copied ? super.keySet() : shared.keySet();
+    }
+
+    @Override
+    public void outputInline(OutputStream out, StringBuilder textBuffer) throws IOException {
+        if (copied) {
+            super.outputInline(out, textBuffer);
+        } else {
+            shared.outputInline(out, textBuffer);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * The number of fonts of a source document merged into each merged font, counted before any of
+ * its pages is imported so a {@link FontMergePolicy} can decide on a font before its first copy is
+ * written. The fonts of the pages and of the forms they use are identified from their dictionaries,
+ * fonts which could only be identified by parsing their programs aren't counted.
+ */
+final class SourceFontCopies {
+
+    private final Map<String, Integer> copies = new HashMap<String, Integer>();
+
+    private SourceFontCopies(PDDocument sourceDoc, FontContainerCache fontCache) {
+        Set<COSDictionary> seen = Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
+        for (PDPage page : sourceDoc.getPages()) {
+            if (page.getResources() != null) {
+                countFonts(page.getResources().getCOSObject(), fontCache, seen);
+            }
+        }
+    }
+
+    /**
+     * Returns the counts of a source document, counting the fonts if necessary.
+     * @param objectCachePerFile the object cache of the source document
+     * @param sourceDoc the source document
+     * @param fontCache the font cache of the source document
+     * @return the counts
+     */
+    static SourceFontCopies getInstance(Map<Object, Object> objectCachePerFile, PDDocument sourceDoc,
+                                        FontContainerCache fontCache) {
+        String key = SourceFontCopies.class.getName();
+        SourceFontCopies instance = (SourceFontCopies) objectCachePerFile.get(key);
+        if (instance == null) {
+            instance = new SourceFontCopies(sourceDoc, fontCache);
+            objectCachePerFile.put(key, instance);
+        }
+        return instance;
+    }
+
+    private void countFonts(COSDictionary resources, FontContainerCache fontCache, Set<COSDictionary> seen) {
+        if (!seen.add(resources)) {
+            return;
+        }
+        COSBase fonts = resources.getDictionaryObject(COSName.FONT);
+        if (fonts instanceof COSDictionary) {
+            for (COSName name : ((COSDictionary) fonts).keySet()) {
+                COSBase font = ((COSDictionary) fonts).getDictionaryObject(name);
+                if (font instanceof COSDictionary && seen.add((COSDictionary) font)) {
+                    FontSignature signature = fontCache.getSignature((COSDictionary) font);
+                    if (signature.isIdentified() && signature.getUniqueFontName() != null) {
+                        Integer count = copies.get(signature.getUniqueFontName());
+                        copies.put(signature.getUniqueFontName(), count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        }
+        COSBase xobjects = resources.getDictionaryObject(COSName.XOBJECT);
+        if (xobjects instanceof COSDictionary) {
+            for (COSName name : ((COSDictionary) xobjects).keySet()) {
+                COSBase xobject = ((COSDictionary) xobjects).getDictionaryObject(name);
+                if (xobject instanceof COSStream
+                        && COSName.FORM.equals(((COSStream) xobject).getCOSName(COSName.SUBTYPE))) {
+                    COSBase formResources = ((COSStream) xobject).getDictionaryObject(COSName.RESOURCES);
+                    if (formResources instanceof COSDictionary) {
+                        countFonts((COSDictionary) formResources, fontCache, seen);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of fonts of the source document merged into a merged font, at least 1
+     * for the font asked about.
+     * @param uniqueFontName the name of the merged font
+     * @return the number of fonts
+     */
+    int getCopies(String uniqueFontName) {
+        Integer count = copies.get(uniqueFontName);
+        return count == null ? 1 : count;
+    }
+}
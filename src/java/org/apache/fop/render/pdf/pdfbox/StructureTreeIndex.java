@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+
+/**
+ * Remembers, for the structure elements of a source document, the page each element is on and
+ * the pages its marked content and object references are on, so the structure of a page is
+ * copied without walking the parts of the tree which belong to other pages. It is filled in
+ * as the elements are looked up and shared by all pages of the document.
+ */
+final class StructureTreeIndex {
+
+    //the page of an element without a page in its ancestors, which is taken to be any page
+    private static final Object ALL_PAGES = new Object();
+    //the page of an element whose page entry isn't a page
+    private static final Object NO_PAGE = new Object();
+
+    private final COSDictionary structTreeRoot;
+    private final Map<COSDictionary, Object> elementPages = new IdentityHashMap<COSDictionary, Object>();
+    private final Map<COSDictionary, LeafPages> leafPages = new IdentityHashMap<COSDictionary, LeafPages>();
+
+    private static final class LeafPages {
+        boolean allPages;
+        final Set<Object> pages = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        void add(Object page) {
+            if (page == ALL_PAGES) {
+                allPages = true;
+            } else {
+                pages.add(page);
+            }
+        }
+    }
+
+    private StructureTreeIndex(COSDictionary structTreeRoot) {
+        this.structTreeRoot = structTreeRoot;
+    }
+
+    /**
+     * Returns the index of a structure tree, creating it if necessary.
+     * @param objectCachePerFile the object cache of the source document
+     * @param structTreeRoot the structure tree root
+     * @return the index
+     */
+    static StructureTreeIndex getInstance(Map<Object, Object> objectCachePerFile, COSDictionary structTreeRoot) {
+        String key = StructureTreeIndex.class.getName();
+        StructureTreeIndex index = (StructureTreeIndex) objectCachePerFile.get(key);
+        if (index == null || index.structTreeRoot != structTreeRoot) {
+            index = new StructureTreeIndex(structTreeRoot);
+            objectCachePerFile.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns whether an element is on a page, from its own page entry or the nearest one of its
+     * ancestors. An element without a page in its ancestors is on every page.
+     * @param elem the element
+     * @param page the page
+     * @return true if the element is on the page
+     */
+    boolean isOnPage(COSDictionary elem, COSDictionary page) {
+        Object elemPage = getPage(elem);
+        return elemPage == ALL_PAGES || elemPage == page;
+    }
+
+    /**
+     * Returns whether any marked content or object reference below an element is on a page.
+     * @param elem the element
+     * @param page the page
+     * @return false if the kids of the element don't need to be looked at for the page
+     */
+    boolean hasLeavesOnPage(COSDictionary elem, COSDictionary page) {
+        LeafPages pages = getLeafPages(elem);
+        return pages.allPages || pages.pages.contains(page);
+    }
+
+    private Object getPage(COSDictionary elem) {
+        Object page = elementPages.get(elem);
+        if (page == null) {
+            //stands in for the page while the ancestors are read, in case these loop
+            elementPages.put(elem, ALL_PAGES);
+            if (elem.containsKey(COSName.PG)) {
+                COSBase pg = elem.getDictionaryObject(COSName.PG);
+                page = pg instanceof COSDictionary ? pg : NO_PAGE;
+            } else if (elem.getDictionaryObject(COSName.P) instanceof COSDictionary) {
+                page = getPage((COSDictionary) elem.getDictionaryObject(COSName.P));
+            } else {
+                page = ALL_PAGES;
+            }
+            elementPages.put(elem, page);
+        }
+        return page;
+    }
+
+    private LeafPages getLeafPages(COSDictionary elem) {
+        LeafPages pages = leafPages.get(elem);
+        if (pages == null) {
+            pages = new LeafPages();
+            leafPages.put(elem, pages);
+            addLeafPages(elem.getItem(COSName.K), elem, pages);
+        }
+        return pages;
+    }
+
+    /**
+     * Adds the pages of the leaves below a kid, the way StructureTreeMerger finds the leaves.
+     */
+    private void addLeafPages(COSBase kid, COSDictionary parent, LeafPages pages) {
+        if (kid instanceof COSArray) {
+            for (COSBase entry : (COSArray) kid) {
+                addLeafPages(entry, parent, pages);
+            }
+        } else if (kid instanceof COSObject) {
+            COSBase base = ((COSObject) kid).getObject();
+            if (base instanceof COSDictionary) {
+                COSDictionary dict = (COSDictionary) base;
+                if (dict.getDictionaryObject(COSName.S) != null && dict.getItem(COSName.K) != null) {
+                    LeafPages kidPages = getLeafPages(dict);
+                    pages.allPages |= kidPages.allPages;
+                    pages.pages.addAll(kidPages.pages);
+                } else {
+                    addLeafPages(dict, parent, pages);
+                }
+            }
+        } else if (kid instanceof COSDictionary) {
+            COSDictionary dict = (COSDictionary) kid;
+            if (dict.containsKey(COSName.PG)) {
+                COSBase pg = dict.getDictionaryObject(COSName.PG);
+                pages.add(pg instanceof COSDictionary ? pg : NO_PAGE);
+            } else {
+                pages.add(getPage(parent));
+            }
+        } else {
+            pages.add(getPage(parent));
+        }
+    }
+}
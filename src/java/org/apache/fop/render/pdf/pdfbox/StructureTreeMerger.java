@@ -55,6 +55,7 @@ public class StructureTreeMerger {
     PDFDocument pdfDoc;
     private PDPage srcPage;
     private COSDictionary roleMap;
+    private StructureTreeIndex structureTreeIndex;
     protected PDFStructElem currentSessionElem;
     private PDFLogicalStructureHandler logicalStructHandler;
     private Map<Integer, PDFStructElem> structElemCache = new HashMap<Integer, PDFStructElem>();
@@ -79,6 +80,14 @@ public class StructureTreeMerger {
         this.roleMap = roleMap;
     }
 
+    /**
+     * Sets the index of the source structure tree, which lets the elements of other pages be skipped.
+     * @param structureTreeIndex the index shared by the pages of the source document
+     */
+    void setStructureTreeIndex(StructureTreeIndex structureTreeIndex) {
+        this.structureTreeIndex = structureTreeIndex;
+    }
+
     public void copyStructure(COSArray pageParentTreeArray) throws IOException {
         originalParentTree = pageParentTreeArray;
         pageParentTreeArray = removeNonCOSObjects(pageParentTreeArray);
@@ -277,6 +286,9 @@ public class StructureTreeMerger {
     }
 
     private boolean checkPageEntryInAncestorsRecursively(COSDictionary elem) {
+        if (structureTreeIndex != null) {
+            return structureTreeIndex.isOnPage(elem, srcPage.getCOSObject());
+        }
         if (elem.containsKey(COSName.PG)) {
             COSDictionary pageDict = (COSDictionary)elem.getDictionaryObject(COSName.PG);
             return srcPage.getCOSObject() == pageDict;
@@ -403,11 +415,18 @@ public class StructureTreeMerger {
         if (entry instanceof COSObject) {
             COSObject entryObj = (COSObject) entry;
             COSDictionary structElemDictionary = (COSDictionary) entryObj.getObject();
+            if (!hasLeavesOnSourcePage(structElemDictionary)) {
+                return;
+            }
             COSBase kid = structElemDictionary.getItem(COSName.K);
             findLeafKids(kid, entryObj);
         }
     }
 
+    private boolean hasLeavesOnSourcePage(COSDictionary structElem) {
+        return structureTreeIndex == null || structureTreeIndex.hasLeavesOnPage(structElem, srcPage.getCOSObject());
+    }
+
     private void findLeafKids(COSBase kid, COSObject parent) throws IOException {
         if (kid instanceof COSArray) {
             COSArray arrayKid = (COSArray)kid;
@@ -420,9 +439,10 @@ public class StructureTreeMerger {
             if (base instanceof COSDictionary) {
                 COSDictionary temp = (COSDictionary) base;
                 if (temp.getDictionaryObject(COSName.S) != null && temp.getItem(COSName.K) != null) {
-
-                    COSBase tempKids = temp.getItem(COSName.K);
-                    findLeafKids(tempKids, kidObject);
+                    if (hasLeavesOnSourcePage(temp)) {
+                        COSBase tempKids = temp.getItem(COSName.K);
+                        findLeafKids(tempKids, kidObject);
+                    }
                 } else {
                     findLeafKids(temp, parent);
                 }
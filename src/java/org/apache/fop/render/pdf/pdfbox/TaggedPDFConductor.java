@@ -37,6 +37,7 @@ public class TaggedPDFConductor {
 
     private PDPage srcPage;
     private PDFPage targetPage;
+    private PDFBoxAdapter adapter;
     private DocumentRootModifier rootMod;
     private StructureTreeMerger merger;
 
@@ -45,6 +46,7 @@ public class TaggedPDFConductor {
                               PDFBoxAdapter adapter) {
         this.srcPage = srcPage;
         this.targetPage = adapter.getTargetPage();
+        this.adapter = adapter;
         PDFDocument pdfDoc = targetPage.getDocument();
         this.rootMod = new DocumentRootModifier(adapter, pdfDoc);
         merger = new StructureTreeMerger(currentSessionElem, logicalStructHandler, adapter, srcPage);
@@ -59,18 +61,32 @@ public class TaggedPDFConductor {
             if (!isParentTreeIsPresent(strucRootDict)) {
                 merger.createDirectDescendants(strucRootDict, merger.currentSessionElem);
             } else {
-                PageParentTreeFinder markedContentsParentFinder = new PageParentTreeFinder(srcPage);
+                PageParentTreeFinder markedContentsParentFinder = new PageParentTreeFinder(srcPage,
+                        adapter.clonedVersion);
                 COSArray markedContentsParents = markedContentsParentFinder.getPageParentTreeArray(srcDoc);
                 COSDictionary roleMap = (COSDictionary)strucRootDict.getDictionaryObject(COSName.ROLE_MAP);
                 if (roleMap != null) {
                     merger.setRoleMap(roleMap);
                 }
+                if (isStructureTreeIndexed()) {
+                    merger.setStructureTreeIndex(StructureTreeIndex.getInstance(adapter.clonedVersion,
+                            strucRootDict));
+                }
                 merger.copyStructure(markedContentsParents);
             }
         }
         configureCurrentSessionElem(srcDoc);
     }
 
+    /**
+     * Returns whether the pages of the structure tree elements are indexed once per source document,
+     * so the elements without content on the page can be skipped, or each page walks the whole tree.
+     * @return true if the index is used
+     */
+    protected boolean isStructureTreeIndexed() {
+        return true;
+    }
+
     private void configureCurrentSessionElem(PDDocument srcDoc) {
         if (!(isInputPDFTagged(srcDoc) && isStructureTreeRootNull(srcDoc))) {
             merger.setCurrentSessionElemKid();
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.BitSet;
+
+/**
+ * Empties the glyphs of a TrueType program which aren't used, keeping the glyph ids of the used ones.
+ * Only the glyf and loca tables are rewritten, the glyph count and all other tables stay the same.
+ */
+final class TrueTypeGlyphFilter {
+
+    private static final int GLYF = 0x676C7966;
+    private static final int LOCA = 0x6C6F6361;
+    private static final int HEAD = 0x68656164;
+    private static final int MAXP = 0x6D617870;
+
+    private static final int ARG_1_AND_2_ARE_WORDS = 0x01;
+    private static final int WE_HAVE_A_SCALE = 0x08;
+    private static final int MORE_COMPONENTS = 0x20;
+    private static final int WE_HAVE_AN_X_AND_Y_SCALE = 0x40;
+    private static final int WE_HAVE_A_TWO_BY_TWO = 0x80;
+
+    private final byte[] font;
+    private final int numTables;
+    private final boolean longLoca;
+    private final int numGlyphs;
+    private final int glyfOffset;
+    private final int[] loca;
+
+    private TrueTypeGlyphFilter(byte[] font) {
+        this.font = font;
+        numTables = readUShort(font, 4);
+        longLoca = readUShort(font, getTableOffset(HEAD) + 50) == 1;
+        numGlyphs = readUShort(font, getTableOffset(MAXP) + 4);
+        glyfOffset = getTableOffset(GLYF);
+        int locaOffset = getTableOffset(LOCA);
+        loca = new int[numGlyphs + 1];
+        for (int i = 0; i <= numGlyphs; i++) {
+            loca[i] = longLoca ? readInt(font, locaOffset + i * 4) : readUShort(font, locaOffset + i * 2) * 2;
+        }
+    }
+
+    /**
+     * Empties the glyphs which aren't used. The .notdef glyph and the components of the used
+     * composite glyphs are kept as well.
+     * @param font the TrueType program
+     * @param used the ids of the used glyphs
+     * @return the filtered program, or the program itself if all glyphs are kept or it can't be read
+     */
+    static byte[] keepGlyphs(byte[] font, BitSet used) {
+        try {
+            return new TrueTypeGlyphFilter(font).filter(used);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return font;
+        } catch (IllegalArgumentException e) {
+            return font;
+        }
+    }
+
+    private byte[] filter(BitSet used) {
+        BitSet kept = getClosure(used);
+        int glyfLength = 0;
+        boolean changed = false;
+        for (int gid = 0; gid < numGlyphs; gid++) {
+            if (kept.get(gid)) {
+                glyfLength += getGlyphLength(gid);
+            } else if (getGlyphLength(gid) > 0) {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return font;
+        }
+        byte[] glyf = new byte[glyfLength];
+        byte[] newLoca = new byte[(numGlyphs + 1) * (longLoca ? 4 : 2)];
+        int pos = 0;
+        for (int gid = 0; gid <= numGlyphs; gid++) {
+            if (longLoca) {
+                writeInt(newLoca, gid * 4, pos);
+            } else {
+                writeUShort(newLoca, gid * 2, pos / 2);
+            }
+            if (gid < numGlyphs && kept.get(gid)) {
+                int length = getGlyphLength(gid);
+                System.arraycopy(font, glyfOffset + loca[gid], glyf, pos, length);
+                pos += length;
+            }
+        }
+        return writeFont(glyf, newLoca);
+    }
+
+    /**
+     * Adds .notdef and the components of the composite glyphs, recursively, to the used glyphs.
+     */
+    private BitSet getClosure(BitSet used) {
+        BitSet kept = new BitSet(numGlyphs);
+        int[] pending = new int[numGlyphs];
+        int count = 0;
+        pending[count++] = 0;
+        kept.set(0);
+        for (int gid = used.nextSetBit(0); gid >= 0 && gid < numGlyphs; gid = used.nextSetBit(gid + 1)) {
+            if (!kept.get(gid)) {
+                kept.set(gid);
+                pending[count++] = gid;
+            }
+        }
+        while (count > 0) {
+            int gid = pending[--count];
+            int start = glyfOffset + loca[gid];
+            int end = start + getGlyphLength(gid);
+            if (end - start <= 10 || (short) readUShort(font, start) >= 0) {
+                continue;
+            }
+            int pos = start + 10;
+            int flags = MORE_COMPONENTS;
+            while ((flags & MORE_COMPONENTS) != 0 && pos + 4 <= end) {
+                flags = readUShort(font, pos);
+                int component = readUShort(font, pos + 2);
+                if (component < numGlyphs && !kept.get(component)) {
+                    kept.set(component);
+                    pending[count++] = component;
+                }
+                pos += (flags & ARG_1_AND_2_ARE_WORDS) != 0 ? 8 : 6;
+                if ((flags & WE_HAVE_A_SCALE) != 0) {
+                    pos += 2;
+                } else if ((flags & WE_HAVE_AN_X_AND_Y_SCALE) != 0) {
+                    pos += 4;
+                } else if ((flags & WE_HAVE_A_TWO_BY_TWO) != 0) {
+                    pos += 8;
+                }
+            }
+        }
+        return kept;
+    }
+
+    private int getGlyphLength(int gid) {
+        return Math.max(0, loca[gid + 1] - loca[gid]);
+    }
+
+    private int getTableOffset(int tag) {
+        for (int i = 0; i < numTables; i++) {
+            if (readInt(font, 12 + i * 16) == tag) {
+                return readInt(font, 12 + i * 16 + 8);
+            }
+        }
+        throw new IllegalArgumentException("Table not found");
+    }
+
+    /**
+     * Writes the font again with new glyf and loca tables, keeping the order of the tables.
+     */
+    private byte[] writeFont(byte[] glyf, byte[] newLoca) {
+        byte[][] tables = new byte[numTables][];
+        int size = 12 + numTables * 16;
+        for (int i = 0; i < numTables; i++) {
+            int record = 12 + i * 16;
+            int tag = readInt(font, record);
+            if (tag == GLYF) {
+                tables[i] = glyf;
+            } else if (tag == LOCA) {
+                tables[i] = newLoca;
+            } else {
+                tables[i] = new byte[readInt(font, record + 12)];
+                System.arraycopy(font, readInt(font, record + 8), tables[i], 0, tables[i].length);
+            }
+            size += (tables[i].length + 3) & ~3;
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(font, 0, result, 0, 12);
+        int pos = 12 + numTables * 16;
+        int headOffset = -1;
+        for (int i = 0; i < numTables; i++) {
+            int record = 12 + i * 16;
+            int tag = readInt(font, record);
+            if (tag == HEAD) {
+                //the checksum adjustment is left out of the checksums
+                writeInt(tables[i], 8, 0);
+                headOffset = pos;
+            }
+            System.arraycopy(tables[i], 0, result, pos, tables[i].length);
+            writeInt(result, record, tag);
+            writeInt(result, record + 4, getCheckSum(result, pos, tables[i].length));
+            writeInt(result, record + 8, pos);
+            writeInt(result, record + 12, tables[i].length);
+            pos += (tables[i].length + 3) & ~3;
+        }
+        writeInt(result, headOffset + 8, (int) (0xB1B0AFBAL - getCheckSum(result, 0, result.length)));
+        return result;
+    }
+
+    private static int getCheckSum(byte[] data, int start, int length) {
+        long sum = 0;
+        for (int i = 0; i < (length + 3) / 4; i++) {
+            sum += readInt(data, start + i * 4) & 0xFFFFFFFFL;
+        }
+        return (int) sum;
+    }
+
+    private static int readUShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    private static void writeUShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 24);
+        data[pos + 1] = (byte) (value >> 16);
+        data[pos + 2] = (byte) (value >> 8);
+        data[pos + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.fop.fonts.type1.PFBData;
+import org.apache.fop.fonts.type1.PostscriptParser;
+
+/**
+ * A Type 1 font program parsed and decrypted for merging. The programs are kept by the digest of
+ * the font file in the {@link FontContainerCache} of the source document, so the subsets sharing a
+ * font file are only parsed once.
+ */
+final class Type1Program {
+
+    final PFBData pfbData;
+    final List<PostscriptParser.PSElement> headerSection;
+    final PostscriptParser.PSElement encoding;
+    final byte[] decoded;
+    final List<PostscriptParser.PSElement> mainSection;
+    final PostscriptParser.PSElement subroutines;
+    final PostscriptParser.PSElement charStrings;
+    final int lenIV;
+    //the charstrings encrypted with a lenIV of 4, by glyph name
+    private final Map<String, byte[]> charStringEntries = new HashMap<String, byte[]>();
+
+    Type1Program(PFBData pfbData, List<PostscriptParser.PSElement> headerSection,
+                 PostscriptParser.PSElement encoding, byte[] decoded,
+                 List<PostscriptParser.PSElement> mainSection, PostscriptParser.PSElement subroutines,
+                 PostscriptParser.PSElement charStrings, int lenIV) {
+        this.pfbData = pfbData;
+        this.headerSection = headerSection;
+        this.encoding = encoding;
+        this.decoded = decoded;
+        this.mainSection = mainSection;
+        this.subroutines = subroutines;
+        this.charStrings = charStrings;
+        this.lenIV = lenIV;
+    }
+
+    /**
+     * Returns the cache key of a font file.
+     * @param fontFile the PFB font file
+     * @return the digest of the font file
+     */
+    static ByteBuffer getKey(ByteBuffer fontFile) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(fontFile.duplicate());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    synchronized boolean hasCharString(String name) {
+        return charStringEntries.containsKey(name);
+    }
+
+    synchronized byte[] getCharString(String name) {
+        return charStringEntries.get(name);
+    }
+
+    synchronized void putCharString(String name, byte[] charString) {
+        charStringEntries.put(name, charString);
+    }
+}
@@ -20,9 +20,9 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
@@ -33,11 +33,11 @@ import org.apache.fop.pdf.PDFDocument;
 
 public class UniqueName {
     private String key;
-    private List<COSName> resourceNames;
+    private Set<COSName> resourceNames;
 
     public UniqueName(String key, COSDictionary sourcePageResources, boolean disable) {
         if (disable) {
-            resourceNames = Collections.emptyList();
+            resourceNames = Collections.emptySet();
         } else {
             key = key.split("#")[0];
             this.key = Integer.toString(key.hashCode());
@@ -62,8 +62,8 @@ public class UniqueName {
         }
     }
 
-    private List<COSName> getResourceNames(COSDictionary sourcePageResources) {
-        List<COSName> resourceNames = new ArrayList<COSName>();
+    private Set<COSName> getResourceNames(COSDictionary sourcePageResources) {
+        Set<COSName> resourceNames = new HashSet<COSName>();
         for (COSBase e : sourcePageResources.getValues()) {
             if (e instanceof COSObject) {
                 e = ((COSObject) e).getObject();
@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+/**
+ * Finds the resources a page actually uses. Besides the page content this looks into the forms,
+ * tiling patterns, soft masks and Type 3 glyph procedures without resources of their own, as
+ * these use the page resources as well.
+ */
+public final class UsedResourcesFinder {
+
+    /** logging instance */
+    protected static final Log log = LogFactory.getLog(UsedResourcesFinder.class);
+
+    private static final Set<COSName> CATEGORIES = Collections.unmodifiableSet(new HashSet<COSName>(Arrays.asList(
+            COSName.FONT, COSName.XOBJECT, COSName.EXT_G_STATE, COSName.COLORSPACE, COSName.PATTERN,
+            COSName.SHADING, COSName.PROPERTIES)));
+
+    private final COSDictionary resources;
+    private final Map<COSName, Set<COSName>> used = new HashMap<COSName, Set<COSName>>();
+    private final Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+
+    private UsedResourcesFinder(COSDictionary resources) {
+        this.resources = resources;
+        //the default color spaces are used implicitly by device colors
+        use(COSName.COLORSPACE, COSName.DEFAULT_GRAY);
+        use(COSName.COLORSPACE, COSName.DEFAULT_RGB);
+        use(COSName.COLORSPACE, COSName.DEFAULT_CMYK);
+    }
+
+    /**
+     * Returns the given resources without the entries not referenced by the content.
+     * @param resources the page resources
+     * @param content the page content
+     * @return a pruned copy of the resources, or the resources themselves if all entries are used
+     * or the usage couldn't be determined
+     */
+    public static COSDictionary getUsedResources(COSDictionary resources, PDStream content) {
+        return getUsedResources(resources, content, new HashMap<Object, Object>());
+    }
+
+    /**
+     * Returns the given resources without the entries not referenced by the content. Pages using
+     * the same entries of the same resources get the same pruned copy, so it can be cloned once.
+     * @param resources the page resources
+     * @param content the page content
+     * @param objectCachePerFile the cache of the source document holding the pruned copies
+     * @return a pruned copy of the resources, or the resources themselves if all entries are used
+     * or the usage couldn't be determined
+     */
+    public static COSDictionary getUsedResources(COSDictionary resources, PDStream content,
+                                                 Map<Object, Object> objectCachePerFile) {
+        UsedResourcesFinder finder = new UsedResourcesFinder(resources);
+        try {
+            finder.readContent(getParser(content.getCOSObject()));
+        } catch (IOException e) {
+            log.debug("Keeping all resources, the content could not be parsed: " + e.getMessage());
+            return resources;
+        } catch (RuntimeException e) {
+            log.debug("Keeping all resources, the content could not be parsed: " + e.getMessage());
+            return resources;
+        }
+        Map<COSName, Set<COSName>> kept = finder.getKeptNames();
+        if (kept == null) {
+            return resources;
+        }
+        PrunedKey key = new PrunedKey(resources, kept);
+        COSDictionary pruned = (COSDictionary) objectCachePerFile.get(key);
+        if (pruned == null) {
+            pruned = finder.prune(kept);
+            objectCachePerFile.put(key, pruned);
+        }
+        return pruned;
+    }
+
+    private static PDFStreamParser getParser(COSStream stream) throws IOException {
+        InputStream is = stream.createInputStream();
+        try {
+            return new PDFStreamParser(IOUtils.toByteArray(is));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private void use(COSName category, COSName name) {
+        Set<COSName> names = used.get(category);
+        if (names == null) {
+            names = new HashSet<COSName>();
+            used.put(category, names);
+        }
+        names.add(name);
+    }
+
+    private COSBase getResource(COSName category, COSName name) {
+        COSBase dict = resources.getDictionaryObject(category);
+        if (dict instanceof COSDictionary) {
+            return ((COSDictionary) dict).getDictionaryObject(name);
+        }
+        return null;
+    }
+
+    private void readContent(PDFStreamParser parser) throws IOException {
+        parser.parse();
+        List<COSBase> arguments = new ArrayList<COSBase>();
+        for (Object o : parser.getTokens()) {
+            if (o instanceof Operator) {
+                readOperator((Operator) o, arguments);
+                arguments.clear();
+            } else {
+                arguments.add((COSBase) o);
+            }
+        }
+    }
+
+    private void readOperator(Operator op, List<COSBase> arguments) throws IOException {
+        String name = op.getName();
+        COSName first = arguments.isEmpty() || !(arguments.get(0) instanceof COSName)
+                ? null : (COSName) arguments.get(0);
+        if (first != null) {
+            readNameOperator(name, first);
+        }
+        if (("scn".equals(name) || "SCN".equals(name)) && !arguments.isEmpty()
+                && arguments.get(arguments.size() - 1) instanceof COSName) {
+            readPattern((COSName) arguments.get(arguments.size() - 1));
+        } else if (("BDC".equals(name) || "DP".equals(name)) && arguments.size() > 1
+                && arguments.get(1) instanceof COSName) {
+            use(COSName.PROPERTIES, (COSName) arguments.get(1));
+        } else if ("BI".equals(name) && op.getImageParameters() != null) {
+            COSBase cs = op.getImageParameters().getDictionaryObject(COSName.CS, COSName.COLORSPACE);
+            if (cs instanceof COSName) {
+                use(COSName.COLORSPACE, (COSName) cs);
+            }
+        }
+    }
+
+    private void readNameOperator(String name, COSName first) throws IOException {
+        if ("Tf".equals(name)) {
+            readFont(first);
+        } else if ("Do".equals(name)) {
+            readXObject(first);
+        } else if ("gs".equals(name)) {
+            readExtGState(first);
+        } else if ("cs".equals(name) || "CS".equals(name)) {
+            use(COSName.COLORSPACE, first);
+        } else if ("sh".equals(name)) {
+            use(COSName.SHADING, first);
+        }
+    }
+
+    private void readFont(COSName name) throws IOException {
+        use(COSName.FONT, name);
+        COSBase font = getResource(COSName.FONT, name);
+        if (font instanceof COSDictionary && COSName.TYPE3.equals(((COSDictionary) font).getItem(COSName.SUBTYPE))
+                && !hasResources(font)) {
+            COSBase charProcs = ((COSDictionary) font).getDictionaryObject(COSName.CHAR_PROCS);
+            if (charProcs instanceof COSDictionary) {
+                for (COSBase charProc : ((COSDictionary) charProcs).getValues()) {
+                    readStream(charProc);
+                }
+            }
+        }
+    }
+
+    private void readXObject(COSName name) throws IOException {
+        use(COSName.XOBJECT, name);
+        COSBase xobject = getResource(COSName.XOBJECT, name);
+        if (xobject instanceof COSStream && COSName.FORM.equals(((COSStream) xobject).getItem(COSName.SUBTYPE))
+                && !hasResources(xobject)) {
+            readStream(xobject);
+        }
+    }
+
+    private void readExtGState(COSName name) throws IOException {
+        use(COSName.EXT_G_STATE, name);
+        COSBase gstate = getResource(COSName.EXT_G_STATE, name);
+        if (gstate instanceof COSDictionary) {
+            COSBase smask = ((COSDictionary) gstate).getDictionaryObject(COSName.SMASK);
+            if (smask instanceof COSDictionary) {
+                COSBase group = ((COSDictionary) smask).getDictionaryObject(COSName.G);
+                if (!hasResources(group)) {
+                    readStream(group);
+                }
+            }
+        }
+    }
+
+    private void readPattern(COSName name) throws IOException {
+        use(COSName.PATTERN, name);
+        COSBase pattern = getResource(COSName.PATTERN, name);
+        if (pattern instanceof COSStream && !hasResources(pattern)) {
+            readStream(pattern);
+        }
+    }
+
+    private static boolean hasResources(COSBase base) {
+        return base instanceof COSDictionary && ((COSDictionary) base).getDictionaryObject(COSName.RESOURCES) != null;
+    }
+
+    private void readStream(COSBase base) throws IOException {
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+        if (base instanceof COSStream && visited.add(base)) {
+            readContent(getParser((COSStream) base));
+        }
+    }
+
+    private static COSDictionary getCategory(COSBase value) {
+        COSBase dict = value instanceof COSObject ? ((COSObject) value).getObject() : value;
+        return dict instanceof COSDictionary ? (COSDictionary) dict : null;
+    }
+
+    /**
+     * Returns the names kept of each category of the resources, which is all that determines the
+     * pruned copy.
+     * @return the names or null if all entries are used
+     */
+    private Map<COSName, Set<COSName>> getKeptNames() {
+        Map<COSName, Set<COSName>> kept = new HashMap<COSName, Set<COSName>>();
+        boolean changed = false;
+        for (Map.Entry<COSName, COSBase> e : resources.entrySet()) {
+            COSDictionary category = getCategory(e.getValue());
+            if (CATEGORIES.contains(e.getKey()) && category != null) {
+                Set<COSName> names = new HashSet<COSName>(category.keySet());
+                Set<COSName> usedNames = used.get(e.getKey());
+                if (usedNames == null) {
+                    names.clear();
+                } else {
+                    names.retainAll(usedNames);
+                }
+                changed |= names.size() < category.size();
+                kept.put(e.getKey(), names);
+            }
+        }
+        return changed ? kept : null;
+    }
+
+    private COSDictionary prune(Map<COSName, Set<COSName>> kept) {
+        COSDictionary pruned = new COSDictionary();
+        for (Map.Entry<COSName, COSBase> e : resources.entrySet()) {
+            COSBase value = e.getValue();
+            Set<COSName> names = kept.get(e.getKey());
+            if (names != null) {
+                COSDictionary category = getCategory(value);
+                if (names.isEmpty()) {
+                    continue;
+                }
+                if (names.size() < category.size()) {
+                    COSDictionary usedCategory = new COSDictionary();
+                    for (Map.Entry<COSName, COSBase> entry : category.entrySet()) {
+                        if (names.contains(entry.getKey())) {
+                            usedCategory.setItem(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    value = usedCategory;
+                }
+            }
+            pruned.setItem(e.getKey(), value);
+        }
+        return pruned;
+    }
+
+    /**
+     * The key of a pruned copy, the resources, compared by identity, and the names kept of them.
+     */
+    private static final class PrunedKey {
+
+        private final COSDictionary resources;
+        private final Map<COSName, Set<COSName>> kept;
+
+        PrunedKey(COSDictionary resources, Map<COSName, Set<COSName>> kept) {
+            this.resources = resources;
+            this.kept = kept;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PrunedKey)) {
+                return false;
+            }
+            PrunedKey other = (PrunedKey) o;
+            return resources == other.resources && kept.equals(other.kept);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(resources) * 31 + kept.hashCode();
+        }
+    }
+}
@@ -16,7 +16,9 @@
  */
 package org.apache.fop.render.pdf;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
@@ -29,21 +31,27 @@ import org.apache.fontbox.cff.CFFFont;
 import org.apache.fontbox.cff.CFFParser;
 import org.apache.fontbox.ttf.GlyphData;
 import org.apache.fontbox.ttf.GlyphTable;
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeFont;
 import org.apache.fontbox.type1.Type1Font;
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSNumber;
 import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.font.PDCIDFontType2;
 import org.apache.pdfbox.pdmodel.font.PDType0Font;
 
+import org.apache.fop.fonts.CMapSegment;
 import org.apache.fop.render.pdf.pdfbox.FOPPDFMultiByteFont;
 import org.apache.fop.render.pdf.pdfbox.FOPPDFSingleByteFont;
 import org.apache.fop.render.pdf.pdfbox.FontContainer;
+import org.apache.fop.render.pdf.pdfbox.FontContainerCache;
+import org.apache.fop.render.pdf.pdfbox.MergedFontRegistry;
 
 public class FOPPDFSingleMultiByteFontTestCase {
     private COSDictionary getFont(PDDocument doc, String internalname) throws IOException {
@@ -120,10 +128,34 @@ public class FOPPDFSingleMultiByteFontTestCase {
         Assert.assertEquals(mbfont.getFontName(), "ArialMT_Type0");
         byte[] is = IOUtils.toByteArray(mbfont.getInputStream());
         Assert.assertEquals(is.length, 38640);
+        Assert.assertArrayEquals(IOUtils.toByteArray(mbfont.getInputStream()), is);
+        TrueTypeFont ttf = new TTFParser(true).parse(new ByteArrayInputStream(is));
+        Assert.assertTrue(ttf.getGlyph().getGlyph(67).getNumberOfContours() > 0);
         doc.close();
         doc2.close();
     }
 
+    @Test
+    public void testUnusedGlyphsDropped() throws Exception {
+        PDDocument doc = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTCID1);
+        MyFOPPDFMultiByteFont mbfont = new MyFOPPDFMultiByteFont(getFont(doc, "C2_0"), "ArialMT_Type0");
+        mbfont.addFont(getFont(doc, "C2_0"));
+        StringBuilder sb = new StringBuilder();
+        Assert.assertTrue(mbfont.writeMappedWord(new byte[] {0, 87}, mbfont.getFontContainer(), sb));
+        Assert.assertEquals(sb.toString(), "<0043>");
+        FOPPDFMultiByteFont unused = new FOPPDFMultiByteFont(getFont(doc, "C2_0"), "ArialMT_Type0");
+        unused.addFont(getFont(doc, "C2_0"));
+        mbfont.buildMergedFont();
+        byte[] is = IOUtils.toByteArray(mbfont.getInputStream());
+        Assert.assertTrue(is.length < IOUtils.toByteArray(unused.getInputStream()).length);
+        Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(mbfont.getInputStream()), is));
+        TrueTypeFont ttf = new TTFParser(true).parse(new ByteArrayInputStream(is));
+        Assert.assertTrue(ttf.getGlyph().getGlyph(67).getNumberOfContours() > 0);
+        Assert.assertTrue(mbfont.writeMappedWord(new byte[] {0, 88}, mbfont.getFontContainer(), new StringBuilder()));
+        Assert.assertTrue(IOUtils.toByteArray(mbfont.getInputStream()).length > is.length);
+        doc.close();
+    }
+
     @Test
     public void testTTSubset() throws Exception {
         PDDocument doc = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTSubset1);
@@ -138,6 +170,7 @@ public class FOPPDFSingleMultiByteFontTestCase {
         Assert.assertEquals(mbfont.getFontName(), "TimesNewRomanPSMT_TrueType");
         byte[] is = IOUtils.toByteArray(mbfont.getInputStream());
         Assert.assertEquals(is.length, 41112);
+        Assert.assertArrayEquals(IOUtils.toByteArray(mbfont.getInputStream()), is);
         doc.close();
         doc2.close();
     }
@@ -158,6 +191,46 @@ public class FOPPDFSingleMultiByteFontTestCase {
         doc2.close();
     }
 
+    @Test
+    public void testFontContainerCache() throws Exception {
+        PDDocument doc = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTSubset1);
+        PDDocument doc2 = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTSubset2);
+        FontContainerCache cache = new FontContainerCache(1);
+        FOPPDFSingleByteFont sbfont = new FOPPDFSingleByteFont(getFont(doc, "R9"),
+                "TimesNewRomanPSMT_TrueType", cache);
+        sbfont.addFont(getFont(doc, "R9"));
+        Assert.assertEquals(cache.getMissCount(), 1);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        sbfont.addFont(getFont(doc2, "R9"));
+        sbfont.addFont(getFont(doc, "R9"));
+        Assert.assertEquals(cache.getMissCount(), 3);
+        Assert.assertEquals(cache.getHitCount(), 1);
+        doc.close();
+        doc2.close();
+    }
+
+    @Test
+    public void testMergedFontRegistry() throws Exception {
+        MergedFontRegistry registry = MergedFontRegistry.getInstance();
+        registry.setEnabled(true);
+        try {
+            int hits = registry.getHitCount();
+            byte[][] programs = new byte[2][];
+            for (int i = 0; i < programs.length; i++) {
+                PDDocument doc = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTSubset1);
+                FOPPDFSingleByteFont sbfont = new FOPPDFSingleByteFont(getFont(doc, "R9"),
+                        "TimesNewRomanPSMT_TrueType");
+                programs[i] = IOUtils.toByteArray(sbfont.getInputStream());
+                doc.close();
+            }
+            Assert.assertEquals(registry.getHitCount(), hits + 1);
+            Assert.assertArrayEquals(programs[0], programs[1]);
+        } finally {
+            registry.setEnabled(false);
+            registry.clear();
+        }
+    }
+
     @Test
     public void testHadMappingOperations() throws IOException {
         PDDocument pdf = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTCID1);
@@ -168,6 +241,69 @@ public class FOPPDFSingleMultiByteFontTestCase {
         pdf.close();
     }
 
+    @Test
+    public void testUnmappedGlyphKeys() throws IOException {
+        PDDocument pdf = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTCID1);
+        COSDictionary font = getFont(pdf, "C2_0");
+        //map the glyphs to several chars each, so none of them can use its char as key
+        StringBuilder cmap = new StringBuilder();
+        for (int i = 1; i <= 100; i++) {
+            cmap.append(String.format("<%04X> <0066%04X>\n", i, 0x100 + i));
+        }
+        setToUnicode(font, 100, cmap.toString());
+        FOPPDFMultiByteFont multiByteFont = new FOPPDFMultiByteFont(font, null);
+        Assert.assertTrue(multiByteFont.hasChar((char) 0xF8FF));
+        for (char c = 0xD800; c <= 0xDFFF; c++) {
+            Assert.assertFalse(multiByteFont.hasChar(c));
+        }
+        pdf.close();
+    }
+
+    @Test
+    public void testKeyOfRealChar() throws IOException {
+        PDDocument pdf = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTCID1);
+        COSDictionary font = getFont(pdf, "C2_0");
+        //the glyph gets U+F8FF as key, the first one handed out
+        setToUnicode(font, 1, "<0010> <00660069>\n");
+        FOPPDFMultiByteFont multiByteFont = new FOPPDFMultiByteFont(font, null);
+        Assert.assertEquals(multiByteFont.findGlyphIndex(0xF8FF), 0x10);
+
+        //a glyph really mapped to U+F8FF, as in many Mac fonts, takes the key over
+        PDDocument pdf2 = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTCID1);
+        COSDictionary font2 = getFont(pdf2, "C2_0");
+        setToUnicode(font2, 1, "<0010> <F8FF>\n");
+        multiByteFont.addFont(font2);
+        int segments = 0;
+        int movedKey = -1;
+        for (CMapSegment segment : multiByteFont.getCMap()) {
+            if (segment.getUnicodeStart() <= 0xF8FF && segment.getUnicodeEnd() >= 0xF8FF) {
+                segments++;
+            }
+            if (segment.getGlyphStartIndex() == 0x10) {
+                movedKey = segment.getUnicodeStart();
+            }
+        }
+        Assert.assertEquals(segments, 1);
+        //the glyph id is taken, so the glyph is added after the one glyph mapped so far
+        Assert.assertEquals(multiByteFont.findGlyphIndex(0xF8FF), 2);
+        Assert.assertEquals(multiByteFont.mapChar((char) 0xF8FF), 2);
+        //the glyph of the first font keeps its glyph id under another key
+        Assert.assertEquals(movedKey, 0xF8FE);
+        Assert.assertEquals(multiByteFont.findGlyphIndex(movedKey), 0x10);
+        pdf.close();
+        pdf2.close();
+    }
+
+    private static void setToUnicode(COSDictionary font, int count, String mappings) throws IOException {
+        StringBuilder cmap = new StringBuilder("1 begincodespacerange <0000> <FFFF> endcodespacerange\n");
+        cmap.append(count).append(" beginbfchar\n").append(mappings).append("endbfchar\n");
+        COSStream toUnicode = new COSStream();
+        OutputStream os = toUnicode.createOutputStream();
+        os.write(cmap.toString().getBytes("US-ASCII"));
+        os.close();
+        font.setItem(COSName.TO_UNICODE, toUnicode);
+    }
+
     @Test
     public void testMappingNotFound() throws IOException {
         PDDocument pdf = PDFBoxAdapterTestCase.load(PDFBoxAdapterTestCase.TTCID1);
@@ -28,12 +28,17 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -44,7 +49,9 @@ import static org.mockito.Mockito.when;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.fontbox.cff.CFFParser;
+import org.apache.fontbox.ttf.GlyphData;
 import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeFont;
 import org.apache.fontbox.type1.Type1Font;
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSDictionary;
@@ -53,6 +60,7 @@ import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSObject;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.font.PDCIDFontType2;
 import org.apache.pdfbox.pdmodel.font.PDType0Font;
 
@@ -65,7 +73,10 @@ import org.apache.xmlgraphics.java2d.GraphicContext;
 import org.apache.xmlgraphics.ps.PSGenerator;
 
 import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.fonts.CIDFontType;
+import org.apache.fop.fonts.CMapSegment;
 import org.apache.fop.fonts.CustomFont;
+import org.apache.fop.fonts.EmbeddingMode;
 import org.apache.fop.fonts.FontInfo;
 import org.apache.fop.fonts.FontType;
 import org.apache.fop.fonts.MultiByteFont;
@@ -79,16 +90,23 @@ import org.apache.fop.pdf.PDFFilterList;
 import org.apache.fop.pdf.PDFFormXObject;
 import org.apache.fop.pdf.PDFGState;
 import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFReference;
 import org.apache.fop.pdf.PDFResources;
 import org.apache.fop.pdf.PDFStream;
+import org.apache.fop.pdf.RefPDFFont;
 import org.apache.fop.render.pcl.PCLGenerator;
 import org.apache.fop.render.pcl.PCLGraphics2D;
+import org.apache.fop.render.pdf.pdfbox.AdaptiveFontMergePolicy;
+import org.apache.fop.render.pdf.pdfbox.FontMergePolicy;
 import org.apache.fop.render.pdf.pdfbox.ImageConverterPDF2G2D;
 import org.apache.fop.render.pdf.pdfbox.ImagePDF;
 import org.apache.fop.render.pdf.pdfbox.MergeTTFonts;
+import org.apache.fop.render.pdf.pdfbox.MergedFontBuilder;
 import org.apache.fop.render.pdf.pdfbox.PDFBoxAdapter;
+import org.apache.fop.render.pdf.pdfbox.PDFBoxBatchAdapter;
 import org.apache.fop.render.pdf.pdfbox.PDFBoxImageHandler;
 import org.apache.fop.render.pdf.pdfbox.PSPDFGraphics2D;
+import org.apache.fop.render.pdf.pdfbox.UsedResourcesFinder;
 import org.apache.fop.render.ps.PSDocumentHandler;
 import org.apache.fop.render.ps.PSImageFormResource;
 import org.apache.fop.render.ps.PSRenderingUtil;
@@ -187,6 +205,133 @@ public class PDFBoxAdapterTestCase {
         parseFonts(fi);
     }
 
+    @Test
+    public void testBuildMergedFonts() throws IOException {
+        FontInfo fi = new FontInfo();
+        writeText(fi, TYPE0TT);
+        writeText(fi, TYPE0CFF);
+        writeText(fi, TTSubset1);
+        MergedFontBuilder.buildAll(fi, 4);
+        parseFonts(fi);
+    }
+
+    @Test
+    public void testDocumentFontsShared() throws IOException {
+        FontInfo fi = new FontInfo();
+        MultiByteFont arial = createArialMT(0);
+        fi.addMetrics("F1", arial);
+        fi.useFont("F1");
+        PDFBoxAdapter adapter = getPDFBoxAdapter(true, false);
+        adapter.setDocumentFontsShared(true);
+        String msg = writeText(fi, TTCID1, adapter);
+        //the codes are the glyphs of the subset of FOP, in the order the characters are first used
+        Assert.assertTrue(msg, msg.contains("/F1 9 Tf\n468.549 641.965 Td\n"
+                + "<00010002000300040005000600070005000800090005000A00030002000B0001000C>Tj\n"));
+        Assert.assertTrue(msg, msg.contains("/F1 9 Tf\n141.98 1 Td\n<000D000B000B000B000E000100010002000C0004>Tj\n"));
+        Assert.assertFalse(fi.getUsedFonts().containsKey("ArialMT_Type0"));
+        Assert.assertTrue(arial.getUsedGlyphs().size() > 1);
+    }
+
+    @Test
+    public void testDocumentFontMissingChar() throws IOException {
+        //a code shown with the source font can't be re-encoded, so the source font is merged instead
+        FontInfo fi = new FontInfo();
+        MultiByteFont arial = createArialMT(0, '\u00A0');
+        fi.addMetrics("F1", arial);
+        fi.useFont("F1");
+        PDFBoxAdapter adapter = getPDFBoxAdapter(true, false);
+        adapter.setDocumentFontsShared(true);
+        String msg = writeText(fi, TTCID1, adapter);
+        Assert.assertFalse(msg, msg.contains("/F1 "));
+        Assert.assertTrue(msg, msg.contains("/ArialMT_Type0 9 Tf\n468.549 641.965 Td\n"));
+        Assert.assertTrue(fi.getUsedFonts().containsKey("ArialMT_Type0"));
+        Assert.assertTrue(arial.getUsedGlyphs().size() <= 1);
+    }
+
+    @Test
+    public void testDocumentFontsNotShared() throws IOException {
+        FontInfo fi = new FontInfo();
+        fi.addMetrics("F1", createArialMT(0));
+        fi.useFont("F1");
+        writeText(fi, TTCID1);
+        Assert.assertTrue(fi.getUsedFonts().containsKey("ArialMT_Type0"));
+
+        //a font with the same name but other widths isn't the same font
+        fi = new FontInfo();
+        fi.addMetrics("F1", createArialMT(100));
+        fi.useFont("F1");
+        PDFBoxAdapter adapter = getPDFBoxAdapter(true, false);
+        adapter.setDocumentFontsShared(true);
+        String msg = writeText(fi, TTCID1, adapter);
+        Assert.assertFalse(msg, msg.contains("/F1 "));
+        Assert.assertTrue(fi.getUsedFonts().containsKey("ArialMT_Type0"));
+    }
+
+    private MultiByteFont createArialMT(int widthChange) throws IOException {
+        return createArialMT(widthChange, (char) 0);
+    }
+
+    /**
+     * Creates a font like the one FOP embeds for Arial, with the characters of the Arial subset of
+     * ttcid1.pdf but the given one and their widths changed by the given amount.
+     */
+    private MultiByteFont createArialMT(int widthChange, char missing) throws IOException {
+        MultiByteFont arial = new MultiByteFont(null, EmbeddingMode.SUBSET);
+        arial.setFontName("ArialMT");
+        arial.setCIDType(CIDFontType.CIDTYPE2);
+        arial.setEmbedURI(URI.create("arial.ttf"));
+        Map<Character, Integer> chars = new TreeMap<Character, Integer>();
+        Set<Character> ambiguous = new HashSet<Character>();
+        PDDocument doc = load(TTCID1);
+        PDType0Font font = (PDType0Font) doc.getPage(0).getResources().getFont(COSName.getPDFName("C2_0"));
+        for (int c = 0; c < 0x10000; c++) {
+            String unicode = font.toUnicode(c);
+            if (unicode != null && unicode.length() == 1 && unicode.charAt(0) != missing) {
+                Integer width = (int) font.getWidth(c) + widthChange;
+                Integer old = chars.put(unicode.charAt(0), width);
+                if (old != null && !old.equals(width)) {
+                    ambiguous.add(unicode.charAt(0));
+                }
+            }
+        }
+        doc.close();
+        //a character of glyphs with different widths can't be in the font
+        chars.keySet().removeAll(ambiguous);
+        //the glyphs come after .notdef and two other glyphs, in the order of their characters
+        List<CMapSegment> cmap = new ArrayList<CMapSegment>();
+        int[] widths = new int[chars.size() + 3];
+        int glyph = 3;
+        for (Map.Entry<Character, Integer> e : chars.entrySet()) {
+            cmap.add(new CMapSegment(e.getKey(), e.getKey(), glyph));
+            widths[glyph++] = e.getValue();
+        }
+        arial.setCMap(cmap.toArray(new CMapSegment[cmap.size()]));
+        arial.setWidthArray(widths);
+        return arial;
+    }
+
+    @Test
+    public void testAdaptiveFontMergePolicy() throws IOException {
+        FontMergePolicy policy = new AdaptiveFontMergePolicy(0, 0.5);
+        //one copy of each font per document isn't worth merging, even if the font comes again
+        FontInfo fi = new FontInfo();
+        PDFBoxAdapter adapter = getPDFBoxAdapter(true, false);
+        adapter.setFontMergePolicy(policy);
+        writeText(fi, TTCID1, adapter);
+        adapter = getPDFBoxAdapter(true, false);
+        adapter.setFontMergePolicy(policy);
+        writeText(fi, TTCID2, adapter);
+        Assert.assertTrue(fi.getUsedFonts().isEmpty());
+
+        //two copies in one document are
+        fi = new FontInfo();
+        adapter = getPDFBoxAdapter(true, false);
+        adapter.setFontMergePolicy(policy);
+        String msg = writeText(fi, SMASK, adapter);
+        Assert.assertTrue(fi.getUsedFonts().containsKey("LucidaGrande_TrueTypecmap1"));
+        Assert.assertTrue(msg, msg.contains("/LucidaGrande_TrueTypecmap1 "));
+    }
+
     @Test
     public void testMergeTT() throws IOException {
         PDDocument doc = load(TYPE0TT);
@@ -204,6 +349,55 @@ public class PDFBoxAdapterTestCase {
         Assert.assertArrayEquals(mergedData, originalDataBytes);
     }
 
+    @Test
+    public void testMergeTTDuplicateGlyphs() throws IOException {
+        PDDocument doc = load(TTCID1);
+        PDType0Font type0Font = (PDType0Font) doc.getPage(0).getResources().getFont(COSName.getPDFName("C2_0"));
+        TrueTypeFont ttf = ((PDCIDFontType2) type0Font.getDescendantFont()).getTrueTypeFont();
+        byte[] originalDataBytes = IOUtils.toByteArray(ttf.getOriginalData());
+        int glyph = 1;
+        while (ttf.getGlyph().getGlyph(glyph) == null
+                || ttf.getGlyph().getGlyph(glyph).getNumberOfContours() <= 0) {
+            glyph++;
+        }
+        int points = ttf.getGlyph().getGlyph(glyph).getDescription().getPointCount();
+        final float maxpVersion = ttf.getMaximumProfile().getVersion();
+        doc.close();
+
+        //the same glyph read from two documents ends up under two glyph ids
+        MergeTTFonts mergeTTFonts = new MergeTTFonts(null) {
+            {
+                //set up the merged maxp like the merged fonts do
+                maxp.setVersion(maxpVersion);
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            Map<Integer, Integer> map = new HashMap<Integer, Integer>();
+            map.put(0, 0);
+            map.put(glyph, 1);
+            mergeTTFonts.readFont(new ByteArrayInputStream(originalDataBytes), null, null, map, true);
+        }
+        byte[] mergedData = mergeTTFonts.getMergedFontSubset();
+        TrueTypeFont merged = new TTFParser(true).parse(new ByteArrayInputStream(mergedData));
+        Assert.assertEquals(merged.getNumberOfGlyphs(), 4);
+        Assert.assertEquals(merged.getGlyph().getGlyph(1).getNumberOfContours(),
+                ttf.getGlyph().getGlyph(glyph).getNumberOfContours());
+        GlyphData copy = merged.getGlyph().getGlyph(3);
+        Assert.assertEquals(copy.getNumberOfContours(), -1);
+        Assert.assertEquals(copy.getDescription().getPointCount(), points);
+
+        //a single component, not followed by others, referring to the first copy
+        int glyf = (int) merged.getTableMap().get("glyf").getOffset();
+        int offset = glyf + (int) merged.getIndexToLocation().getOffsets()[3];
+        int length = (int) (merged.getIndexToLocation().getOffsets()[4]
+                - merged.getIndexToLocation().getOffsets()[3]);
+        Assert.assertEquals(length, 16);
+        int flags = ((mergedData[offset + 10] & 0xFF) << 8) | (mergedData[offset + 11] & 0xFF);
+        Assert.assertEquals(flags & 0x20, 0);
+        int glyphIndex = ((mergedData[offset + 12] & 0xFF) << 8) | (mergedData[offset + 13] & 0xFF);
+        Assert.assertEquals(glyphIndex, 1);
+    }
+
     private void parseFonts(FontInfo fi) throws IOException {
         for (Typeface font : fi.getUsedFonts().values()) {
             InputStream is = ((CustomFont) font).getInputStream();
@@ -230,11 +424,14 @@ public class PDFBoxAdapterTestCase {
     }
 
     private String writeText(FontInfo fi, String pdf) throws IOException {
+        return writeText(fi, pdf, getPDFBoxAdapter(true, false));
+    }
+
+    private String writeText(FontInfo fi, String pdf, PDFBoxAdapter adapter) throws IOException {
         PDDocument doc = load(pdf);
         PDPage page = doc.getPage(0);
         AffineTransform at = new AffineTransform();
-        String c = (String) getPDFBoxAdapter(true, false)
-                .createStreamFromPDFBoxPage(doc, page, pdf, at, fi, new Rectangle());
+        String c = (String) adapter.createStreamFromPDFBoxPage(doc, page, pdf, at, fi, new Rectangle());
         doc.close();
         return c;
     }
@@ -343,12 +540,168 @@ public class PDFBoxAdapterTestCase {
         Rectangle r = new Rectangle(0, 1650, 842000, 595000);
         String stream = (String) adapter.createStreamFromPDFBoxPage(doc, page, "key", at, null, r);
         Assert.assertTrue(stream.contains("/Link <</MCID 5 >>BDC"));
-        Assert.assertEquals(pageNumbers.size(), 4);
+        Assert.assertEquals(pageNumbers.size(), 3);
         PDFAnnotList annots = (PDFAnnotList) pdfpage.get("Annots");
         Assert.assertEquals(annots.toPDFString(), "[\n1 0 R\n2 0 R\n]");
         doc.close();
     }
 
+    @Test
+    public void testLinkToSiblingPage() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        Map<Integer, PDFArray> pageNumbers = new HashMap<Integer, PDFArray>();
+        Map<Object, Object> objectCachePerFile = new HashMap<Object, Object>();
+        PDDocument doc = load(LINK);
+        Rectangle r = new Rectangle(0, 1650, 842000, 595000);
+        PDFPage first = new PDFPage(new PDFResources(pdfdoc), 0, r, r, r, r);
+        first.setDocument(pdfdoc);
+        pdfdoc.assignObjectNumber(first);
+        new PDFBoxAdapter(first, objectCachePerFile, pageNumbers)
+                .createStreamFromPDFBoxPage(doc, doc.getPage(0), LINK, new AffineTransform(), null, r);
+        Assert.assertEquals(pageNumbers.keySet(), new HashSet<Integer>(Arrays.asList(0, 1, 3)));
+        PDFArray placeholder = pageNumbers.get(1);
+        Assert.assertNull(placeholder.get(0));
+        PDFPage second = new PDFPage(new PDFResources(pdfdoc), 1, r, r, r, r);
+        second.setDocument(pdfdoc);
+        pdfdoc.assignObjectNumber(second);
+        new PDFBoxAdapter(second, objectCachePerFile, pageNumbers)
+                .createStreamFromPDFBoxPage(doc, doc.getPage(1), LINK, new AffineTransform(), null, r);
+        doc.close();
+        Assert.assertSame(pageNumbers.get(1), placeholder);
+        Assert.assertEquals(placeholder.get(0).toString(), second.makeReference().toString());
+        Assert.assertFalse(pageNumbers.containsKey(2));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        pdfdoc.outputTrailer(os);
+        String trailer = os.toString("UTF-8");
+        Assert.assertTrue(trailer.contains("[" + second.makeReference() + " /XYZ 0 192 null]"));
+        Assert.assertTrue(trailer.contains("[null /XYZ 0 192 null]"));
+    }
+
+    @Test
+    public void testBatchImport() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        List<PDFPage> pages = new ArrayList<PDFPage>();
+        List<AffineTransform> transforms = new ArrayList<AffineTransform>();
+        List<Rectangle> positions = new ArrayList<Rectangle>();
+        for (int i = 0; i < 3; i++) {
+            PDFPage pdfpage = getPDFPage(pdfdoc);
+            pdfpage.setDocument(pdfdoc);
+            pdfdoc.assignObjectNumber(pdfpage);
+            pages.add(pdfpage);
+            transforms.add(new AffineTransform());
+            positions.add(new Rectangle(0, 1650, 842000, 595000));
+        }
+        FOUserAgent mockedAgent = mock(FOUserAgent.class);
+        when(mockedAgent.getPDFObjectCache()).thenReturn(new SoftMapCache(true));
+        PDDocument doc = load(LINK);
+        PDFBoxBatchAdapter adapter = new PDFBoxBatchAdapter(doc, LINK, mockedAgent, new HashMap<Integer, PDFArray>());
+        List<Object> streams = adapter.createStreamsFromPDFBoxPages(1, 3, pages, transforms, null, positions);
+        doc.close();
+        Assert.assertEquals(streams.size(), 3);
+        for (Object stream : streams) {
+            Assert.assertTrue(((String) stream).contains("re W n"));
+        }
+        Assert.assertFalse(streams.get(0).equals(streams.get(1)));
+    }
+
+    @Test
+    public void testSharedResources() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        Map<Object, Object> objectCachePerFile = new HashMap<Object, Object>();
+        Map<Integer, PDFArray> pageNumbers = new HashMap<Integer, PDFArray>();
+        PDDocument doc = load(LINK);
+        List<String> colorSpaces = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            PDFPage pdfpage = getPDFPage(pdfdoc);
+            pdfpage.setDocument(pdfdoc);
+            pdfdoc.assignObjectNumber(pdfpage);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, objectCachePerFile, pageNumbers);
+            Rectangle r = new Rectangle(0, 1650, 842000, 595000);
+            adapter.createStreamFromPDFBoxPage(doc, doc.getPage(i), LINK, new AffineTransform(), null, r);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            pdfpage.getPDFResources().output(bos);
+            String res = bos.toString("UTF-8");
+            int start = res.indexOf("/ColorSpace ");
+            colorSpaces.add(res.substring(start, res.indexOf('\n', start)));
+        }
+        doc.close();
+        Assert.assertTrue(colorSpaces.get(0).endsWith(" 0 R"));
+        Assert.assertEquals(colorSpaces.get(0), colorSpaces.get(1));
+    }
+
+    @Test
+    public void testSharedResourcesChanged() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        PDFPage pdfpage = getPDFPage(pdfdoc);
+        pdfpage.setDocument(pdfdoc);
+        pdfdoc.assignObjectNumber(pdfpage);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap(), new HashMap<Integer, PDFArray>());
+        PDDocument doc = load(LINK);
+        Rectangle r = new Rectangle(0, 1650, 842000, 595000);
+        adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), LINK, new AffineTransform(), null, r);
+        doc.close();
+        PDFDictionary colorSpaces = (PDFDictionary) pdfpage.getPDFResources().get("ColorSpace");
+        String removed = colorSpaces.keySet().iterator().next();
+        colorSpaces.remove(removed);
+        Assert.assertNull(colorSpaces.get(removed));
+        colorSpaces.put("Test", 1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfpage.getPDFResources().output(bos);
+        String res = bos.toString("UTF-8");
+        int start = res.indexOf("/ColorSpace ");
+        String colorSpace = res.substring(start, res.indexOf('\n', start));
+        Assert.assertFalse(colorSpace, colorSpace.endsWith(" 0 R"));
+        Assert.assertTrue(res, res.contains("/Test 1"));
+    }
+
+    @Test
+    public void testUsedResources() throws Exception {
+        PDDocument doc = load(SHADING);
+        PDPage page = doc.getPage(0);
+        COSDictionary resources = page.getResources().getCOSObject();
+        COSDictionary used = UsedResourcesFinder.getUsedResources(resources, new PDStream(doc, page.getContents()));
+        Assert.assertTrue(resources.containsKey(COSName.SHADING));
+        Assert.assertFalse(used.containsKey(COSName.SHADING));
+        Assert.assertTrue(used.containsKey(COSName.PATTERN));
+        Assert.assertTrue(used.containsKey(COSName.COLORSPACE));
+        doc.close();
+    }
+
+    @Test
+    public void testUsedResourcesShared() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        Map<Object, Object> objectCachePerFile = new HashMap<Object, Object>();
+        Map<Integer, PDFArray> pageNumbers = new HashMap<Integer, PDFArray>();
+        PDDocument doc = load(PATTERN);
+        PDPage page = doc.getPage(0);
+        COSDictionary resources = page.getResources().getCOSObject();
+        COSDictionary used = UsedResourcesFinder.getUsedResources(resources,
+                new PDStream(doc, page.getContents()), objectCachePerFile);
+        Assert.assertNotSame(used, resources);
+        Assert.assertSame(used, UsedResourcesFinder.getUsedResources(resources,
+                new PDStream(doc, page.getContents()), objectCachePerFile));
+
+        //the pruned entries are cloned once and shared by the target pages
+        List<String> gStates = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            PDFPage pdfpage = getPDFPage(pdfdoc);
+            pdfpage.setDocument(pdfdoc);
+            pdfdoc.assignObjectNumber(pdfpage);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, objectCachePerFile, pageNumbers);
+            Rectangle r = new Rectangle(0, 1650, 842000, 595000);
+            adapter.createStreamFromPDFBoxPage(doc, page, PATTERN, new AffineTransform(), null, r);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            pdfpage.getPDFResources().output(bos);
+            String res = bos.toString("UTF-8");
+            int start = res.indexOf("/ExtGState ");
+            gStates.add(res.substring(start, res.indexOf('\n', start)));
+            Assert.assertEquals(((PDFDictionary) pdfpage.getPDFResources().get("ExtGState")).keySet().size(), 5);
+        }
+        doc.close();
+        Assert.assertTrue(gStates.get(0).endsWith(" 0 R"));
+        Assert.assertEquals(gStates.get(0), gStates.get(1));
+    }
+
     @Test
     public void testXform() throws Exception {
         PDFDocument pdfdoc = new PDFDocument("");
@@ -651,18 +1004,32 @@ public class PDFBoxAdapterTestCase {
 
     @Test
     public void testMergeFontsAndFormXObject() throws IOException {
-        String msg = "";
-        PDDocument doc = load(IMAGE);
+        PDFDocument pdfdoc = new PDFDocument("");
+        pdfdoc.getFilterMap().put(PDFFilterList.DEFAULT_FILTER, Collections.singletonList("null"));
+        pdfdoc.setMergeFontsEnabled(true);
+        pdfdoc.setFormXObjectEnabled(true);
+        PDFPage pdfpage = getPDFPage(pdfdoc);
+        pdfpage.setDocument(pdfdoc);
+        pdfpage.setObjectNumber(1);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new HashMap(), new HashMap<Integer, PDFArray>());
+        FontInfo fi = new FontInfo();
+        PDDocument doc = load(CFF3);
         PDPage page = doc.getPage(0);
         AffineTransform at = new AffineTransform();
-        try {
-            getPDFBoxAdapter(true, true)
-                    .createStreamFromPDFBoxPage(doc, page, IMAGE, at, new FontInfo(), new Rectangle());
-        } catch (RuntimeException e) {
-            msg = e.getMessage();
-        }
+        PDFFormXObject formXObject = (PDFFormXObject) adapter.createStreamFromPDFBoxPage(doc, page, CFF3, at, fi,
+                new Rectangle());
         doc.close();
-        Assert.assertEquals(msg, "merge-fonts and form-xobject can't both be enabled");
+        Assert.assertEquals(fi.getUsedFonts().size(), 2);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfdoc.output(bos);
+        String output = bos.toString("UTF-8");
+        Assert.assertTrue(output.contains("/Type /XObject"));
+        Assert.assertTrue(output.contains("/Resources " + ((PDFReference) formXObject.get("Resources")).toString()));
+        for (Map.Entry<String, Typeface> font : fi.getUsedFonts().entrySet()) {
+            String ref = ((RefPDFFont) font.getValue()).getRef().referencePDF();
+            Assert.assertTrue(output, output.contains("/" + font.getKey() + " " + ref));
+            Assert.assertTrue(output, Pattern.compile("/" + font.getKey() + " [0-9.]+ Tf").matcher(output).find());
+        }
     }
 
     @Test
@@ -18,6 +18,8 @@
 package org.apache.fop.render.pdf;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -65,6 +67,19 @@ public class PageParentTreeFinderTestCase {
         doc.close();
     }
 
+    @Test
+    public void testParentTreeIndexShared() throws IOException {
+        PDDocument doc = PDFBoxAdapterTestCase.load(LINK);
+        Map<Object, Object> objectCachePerFile = new HashMap<Object, Object>();
+        COSArray first = new PageParentTreeFinder(doc.getPage(0), objectCachePerFile).getPageParentTreeArray(doc);
+        Assert.assertEquals(objectCachePerFile.size(), 1);
+        COSArray second = new PageParentTreeFinder(doc.getPage(0), objectCachePerFile).getPageParentTreeArray(doc);
+        Assert.assertEquals(objectCachePerFile.size(), 1);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(first.size(), 3);
+        doc.close();
+    }
+
     @Test
     public void testNoparentTreePresent() throws IOException {
         PDPage srcPage = new PDPage();
@@ -21,6 +21,7 @@ import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -49,6 +50,7 @@ public class TaggedPDFConductorTestCase {
     private static final String OTF = "otf.pdf";
     private static final String IMAGE = "hello2.pdf";
     private static final String NOPARENTTREE = "NoParentTree.pdf";
+    private static final String MULTIPAGE = "link.pdf";
     private PDFPage pdfPage;
     private PDFDocument pdfDoc;
 
@@ -89,14 +91,29 @@ public class TaggedPDFConductorTestCase {
     }
 
     private void runConductor(String pdf, PDFStructElem elem) throws IOException {
-        setUp();
         PDDocument doc = PDFBoxAdapterTestCase.load(pdf);
-        PDPage srcPage = doc.getPage(0);
+        runConductor(doc, 0, new HashMap<Object, Object>(), elem);
+    }
+
+    private void runConductor(PDDocument doc, int page, Map<Object, Object> objectCachePerFile, PDFStructElem elem)
+        throws IOException {
+        runConductor(doc, page, objectCachePerFile, elem, true);
+    }
+
+    private void runConductor(PDDocument doc, int page, Map<Object, Object> objectCachePerFile, PDFStructElem elem,
+                              final boolean indexed) throws IOException {
+        setUp();
+        PDPage srcPage = doc.getPage(page);
         elem.setObjectNumber(2);
         PDFBoxAdapter adapter = new PDFBoxAdapter(
-                pdfPage, new HashMap(),  new HashMap<Integer, PDFArray>());
+                pdfPage, objectCachePerFile,  new HashMap<Integer, PDFArray>());
         PDFLogicalStructureHandler handler = setUpPDFLogicalStructureHandler();
-        new TaggedPDFConductor(elem, handler, srcPage, adapter).handleLogicalStructure(doc);
+        new TaggedPDFConductor(elem, handler, srcPage, adapter) {
+            @Override
+            protected boolean isStructureTreeIndexed() {
+                return indexed;
+            }
+        }.handleLogicalStructure(doc);
     }
 
     private void setUp() {
@@ -145,6 +162,22 @@ public class TaggedPDFConductorTestCase {
         }
     }
 
+    @Test
+    public void testStructureTreeIndexShared() throws IOException {
+        PDDocument doc = PDFBoxAdapterTestCase.load(MULTIPAGE);
+        Map<Object, Object> objectCachePerFile = new HashMap<Object, Object>();
+        Assert.assertTrue(doc.getNumberOfPages() > 1);
+        for (int i = 0; i < doc.getNumberOfPages(); i++) {
+            PDFStructElem shared = new PDFStructElem();
+            runConductor(doc, i, objectCachePerFile, shared);
+            PDFStructElem baseline = new PDFStructElem();
+            runConductor(doc, i, new HashMap<Object, Object>(), baseline, false);
+            Assert.assertEquals(print(shared), print(baseline));
+        }
+        Assert.assertTrue(objectCachePerFile.containsKey("org.apache.fop.render.pdf.pdfbox.StructureTreeIndex"));
+        doc.close();
+    }
+
     @Test
     public void testTaggedImagePDF() throws IOException {
         PDFStructElem elem = new PDFStructElem();
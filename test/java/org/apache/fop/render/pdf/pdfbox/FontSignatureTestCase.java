@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+public class FontSignatureTestCase {
+    private static final String[] PDFS = {"2fonts.pdf", "cffcid1.pdf", "simpleh.pdf", "type0cff.pdf",
+        "type0tt.pdf", "libreoffice.pdf", "smask.pdf", "ttcid1.pdf", "ttsubset.pdf", "t1subset.pdf", "xform.pdf"};
+
+    private static PDDocument load(String pdf) throws IOException {
+        return PDDocument.load(FontSignatureTestCase.class.getResourceAsStream("/org/apache/fop/render/pdf/" + pdf));
+    }
+
+    @Test
+    public void testSameNameAsParsedFont() throws IOException {
+        Set<String> names = new HashSet<String>();
+        for (String pdf : PDFS) {
+            PDDocument doc = load(pdf);
+            for (PDPage page : doc.getPages()) {
+                checkFonts(page.getCOSObject().getDictionaryObject(COSName.RESOURCES), names);
+            }
+            doc.close();
+        }
+        //CID-keyed CFF with a format 0 FDSelect
+        Assert.assertTrue(names.contains("CourierStd_Type0format0cff"));
+        //Type 1C encodings and charsets
+        Assert.assertTrue(names.contains("CourierStd_Type1f0encstdcsWinAnsiEncoding"));
+        Assert.assertTrue(names.contains("Myriad_Pro_Type1f0encf1cs"));
+        Assert.assertTrue(names.contains("Frutiger-Bold_Type1stdcsf1cs"));
+        //TrueType cmap subtables
+        Assert.assertTrue(names.contains("ArialMT_TrueTypecidcmap1"));
+        Assert.assertTrue(names.contains("ArialMT_TrueTypecmap1"));
+        Assert.assertTrue(names.contains("TimesNewRomanPSMT_TrueType"));
+        Assert.assertTrue(names.contains("ArialMT_Type0"));
+    }
+
+    private void checkFonts(COSBase resources, Set<String> names) throws IOException {
+        if (!(resources instanceof COSDictionary)) {
+            return;
+        }
+        COSBase fonts = ((COSDictionary) resources).getDictionaryObject(COSName.FONT);
+        if (fonts instanceof COSDictionary) {
+            for (COSName key : ((COSDictionary) fonts).keySet()) {
+                COSDictionary fontData = (COSDictionary) ((COSDictionary) fonts).getDictionaryObject(key);
+                FontSignature signature = new FontSignature(fontData);
+                Assert.assertTrue(key.getName(), signature.isIdentified());
+                String name = MergeFontsPDFWriter.getUniqueFontName(fontData, new FontContainer(fontData));
+                Assert.assertEquals(signature.getUniqueFontName(), name);
+                names.add(name);
+            }
+        }
+        COSBase xobjects = ((COSDictionary) resources).getDictionaryObject(COSName.XOBJECT);
+        if (xobjects instanceof COSDictionary) {
+            for (COSName key : ((COSDictionary) xobjects).keySet()) {
+                COSBase xobject = ((COSDictionary) xobjects).getDictionaryObject(key);
+                if (xobject instanceof COSDictionary) {
+                    checkFonts(((COSDictionary) xobject).getDictionaryObject(COSName.RESOURCES), names);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnidentifiedFont() throws IOException {
+        PDDocument doc = load("fontsnotembeddedcid.pdf");
+        COSDictionary fonts = (COSDictionary) doc.getPage(0).getResources().getCOSObject()
+                .getDictionaryObject(COSName.FONT);
+        Assert.assertFalse(new FontSignature((COSDictionary) fonts.getDictionaryObject("G1")).isIdentified());
+        doc.close();
+
+        COSDictionary fontData = new COSDictionary();
+        fontData.setItem(COSName.SUBTYPE, COSName.TYPE0);
+        fontData.setName(COSName.BASE_FONT, "Test");
+        fontData.setItem(COSName.DESCENDANT_FONTS, new COSArray());
+        FontSignature signature = new FontSignature(fontData);
+        Assert.assertFalse(signature.isIdentified());
+        signature.setUniqueFontName("Test_Type0");
+        Assert.assertTrue(signature.isIdentified());
+        Assert.assertEquals(signature.getUniqueFontName(), "Test_Type0");
+    }
+
+    @Test
+    public void testType3FontNotMerged() {
+        COSDictionary fontData = new COSDictionary();
+        fontData.setItem(COSName.SUBTYPE, COSName.TYPE3);
+        fontData.setName(COSName.BASE_FONT, "Test");
+        FontSignature signature = new FontSignature(fontData);
+        Assert.assertTrue(signature.isIdentified());
+        Assert.assertNull(signature.getUniqueFontName());
+    }
+}
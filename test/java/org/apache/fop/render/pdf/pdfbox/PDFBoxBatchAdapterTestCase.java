@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.xmlgraphics.image.loader.util.SoftMapCache;
+
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFFormXObject;
+import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFResources;
+import org.apache.fop.render.pdf.PDFBoxAdapterTestCase;
+
+public class PDFBoxBatchAdapterTestCase {
+    private static final String LINK = "link.pdf";
+
+    @Test
+    public void testSharedResources() throws IOException {
+        PDFDocument pdfdoc = new PDFDocument("");
+        pdfdoc.setFormXObjectEnabled(true);
+        List<PDFPage> pages = new ArrayList<PDFPage>();
+        List<AffineTransform> transforms = new ArrayList<AffineTransform>();
+        List<Rectangle> positions = new ArrayList<Rectangle>();
+        for (int i = 0; i < 3; i++) {
+            Rectangle2D r = new Rectangle2D.Double();
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), i, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfdoc.assignObjectNumber(pdfpage);
+            pages.add(pdfpage);
+            transforms.add(new AffineTransform());
+            positions.add(new Rectangle(0, 1650, 842000, 595000));
+        }
+        FOUserAgent mockedAgent = mock(FOUserAgent.class);
+        when(mockedAgent.getPDFObjectCache()).thenReturn(new SoftMapCache(true));
+        PDDocument doc = PDDocument.load(PDFBoxAdapterTestCase.class.getResourceAsStream(LINK));
+        for (int i = 2; i <= 3; i++) {
+            Assert.assertSame(doc.getPage(1).getCOSObject().getDictionaryObject("Resources"),
+                    doc.getPage(i).getCOSObject().getDictionaryObject("Resources"));
+        }
+        final List<PDFBoxAdapter> adapters = new ArrayList<PDFBoxAdapter>();
+        PDFBoxBatchAdapter batchAdapter = new PDFBoxBatchAdapter(doc, LINK, mockedAgent,
+                new HashMap<Integer, PDFArray>()) {
+            @Override
+            PDFBoxAdapter createAdapter(PDFPage targetPage) {
+                PDFBoxAdapter adapter = super.createAdapter(targetPage);
+                adapters.add(adapter);
+                return adapter;
+            }
+        };
+        List<Object> forms = batchAdapter.createStreamsFromPDFBoxPages(1, 3, pages, transforms, null, positions);
+        doc.close();
+        Assert.assertEquals(adapters.size(), 3);
+        String resources = ((PDFFormXObject) forms.get(0)).get("Resources").toString();
+        Assert.assertTrue(resources.endsWith(" 0 R"));
+        for (int i = 1; i < 3; i++) {
+            Assert.assertSame(adapters.get(0).uniqueName, adapters.get(i).uniqueName);
+            Assert.assertEquals(((PDFFormXObject) forms.get(i)).get("Resources").toString(), resources);
+        }
+    }
+}